@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamResult;
+
+import org.dmg.pmml.PMML;
+import org.jpmml.export.KMeansConverter;
+import org.jpmml.model.JAXBUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rexp.Rexp;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KMeansBenchmark {
+
+	@Param({"10", "100"})
+	public int clusters;
+
+	@Param({"30"})
+	public int predictors;
+
+	private byte[] bytes = null;
+
+	private Rexp.REXP kmeans = null;
+
+	private PMML pmml = null;
+
+
+	@Setup
+	public void setup(){
+		REXPGenerator generator = new REXPGenerator(42L);
+
+		this.kmeans = generator.generateKMeans(this.clusters, this.predictors);
+		this.bytes = this.kmeans.toByteArray();
+
+		KMeansConverter converter = new KMeansConverter();
+
+		this.pmml = converter.convert(this.kmeans);
+	}
+
+	@Benchmark
+	public Rexp.REXP parse() throws Exception {
+		return Rexp.REXP.parseFrom(this.bytes);
+	}
+
+	@Benchmark
+	public PMML convert(){
+		KMeansConverter converter = new KMeansConverter();
+
+		return converter.convert(this.kmeans);
+	}
+
+	@Benchmark
+	public void marshal() throws Exception {
+		JAXBUtil.marshalPMML(this.pmml, new StreamResult(new NullOutputStream()));
+	}
+}
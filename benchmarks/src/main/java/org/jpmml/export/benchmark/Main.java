@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that allocation rates are reported together with timings.
+ *
+ * Accepts the standard JMH command-line options.
+ */
+public class Main {
+
+	static
+	public void main(String... args) throws Exception {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+		Options options = new OptionsBuilder()
+			.parent(commandLineOptions)
+			.addProfiler(GCProfiler.class)
+			.build();
+
+		Runner runner = new Runner(options);
+		runner.run();
+	}
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream that discards all bytes.
+ *
+ * Marshalling benchmarks measure the cost of serialization, not the cost of I/O.
+ */
+class NullOutputStream extends OutputStream {
+
+	@Override
+	public void write(int b){
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length){
+	}
+}
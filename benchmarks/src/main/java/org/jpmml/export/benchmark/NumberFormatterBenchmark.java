@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jpmml.export.NumberFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NumberFormatterBenchmark {
+
+	private double[] values = null;
+
+	private StringBuilder sb = new StringBuilder(32 * 1024);
+
+
+	@Setup
+	public void setup(){
+		Random random = new Random(42L);
+
+		this.values = new double[1000];
+
+		// Split thresholds and scores, as found in Random Forest models
+		for(int i = 0; i < this.values.length; i++){
+			this.values[i] = (random.nextGaussian() * 100d);
+		}
+	}
+
+	@Benchmark
+	public int append(){
+		StringBuilder sb = this.sb;
+		sb.setLength(0);
+
+		for(double value : this.values){
+			NumberFormatter.append(sb, value).append(' ');
+		}
+
+		return sb.length();
+	}
+
+	@Benchmark
+	public int doubleToString(){
+		StringBuilder sb = this.sb;
+		sb.setLength(0);
+
+		for(double value : this.values){
+			sb.append(Double.toString(value)).append(' ');
+		}
+
+		return sb.length();
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import rexp.Rexp;
+
+/**
+ * Generates synthetic R model objects, which have the same layout as the ones that R serializes.
+ */
+public class REXPGenerator {
+
+	private Random random = null;
+
+
+	public REXPGenerator(long seed){
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Generates a <code>randomForest</code> object that was trained using the matrix (ie. non-formula) interface.
+	 *
+	 * Every third independent variable is a factor with the specified number of levels, and all other independent variables are numeric.
+	 *
+	 * @param type Either "regression" or "classification".
+	 * @param cardinality The number of factor levels. Values less than 2 suppress factors.
+	 */
+	public Rexp.REXP generateRandomForest(String type, int ntree, int nrnodes, int predictors, int cardinality){
+		boolean classification;
+
+		if("regression".equals(type)){
+			classification = false;
+		} else
+
+		if("classification".equals(type)){
+			classification = true;
+		} else
+
+		{
+			throw new IllegalArgumentException(type);
+		}
+
+		int[] ncat = new int[predictors];
+
+		List<String> names = new ArrayList<String>();
+		List<Rexp.REXP> xlevels = new ArrayList<Rexp.REXP>();
+
+		for(int i = 0; i < predictors; i++){
+			names.add("x" + (i + 1));
+
+			boolean categorical = (cardinality > 1) && (i % 3 == 2);
+			if(categorical){
+				ncat[i] = cardinality;
+
+				List<String> levels = new ArrayList<String>();
+
+				for(int j = 0; j < cardinality; j++){
+					levels.add("level" + (j + 1));
+				}
+
+				xlevels.add(createString(levels));
+			} else
+
+			{
+				ncat[i] = 1;
+
+				xlevels.add(createReal(new double[]{0d}));
+			}
+		}
+
+		int nclass = 3;
+
+		int[] leftDaughter = new int[nrnodes * ntree];
+		int[] rightDaughter = new int[nrnodes * ntree];
+		int[] bestvar = new int[nrnodes * ntree];
+		double[] xbestsplit = new double[nrnodes * ntree];
+		double[] nodepred = new double[nrnodes * ntree];
+
+		for(int i = 0; i < ntree; i++){
+			int offset = (i * nrnodes);
+
+			int count = 1;
+
+			for(int j = 0; j < count; j++){
+				boolean split = (count + 2 <= nrnodes) && (j == 0 || this.random.nextDouble() < 0.75d);
+
+				if(split){
+					int var = this.random.nextInt(predictors);
+
+					bestvar[offset + j] = (var + 1);
+
+					if(ncat[var] > 1){
+						xbestsplit[offset + j] = nextMask(ncat[var]);
+					} else
+
+					// A binary indicator (eg. a dummy-encoded level), which is always split at 0.5
+					if(var % 3 == 1){
+						xbestsplit[offset + j] = 0.5d;
+					} else
+
+					{
+						xbestsplit[offset + j] = this.random.nextGaussian();
+					}
+
+					leftDaughter[offset + j] = (count + 1);
+					rightDaughter[offset + j] = (count + 2);
+
+					count += 2;
+				} else
+
+				{
+					nodepred[offset + j] = (classification ? (1 + this.random.nextInt(nclass)) : this.random.nextGaussian());
+				}
+			}
+		}
+
+		List<String> forestNames = new ArrayList<String>();
+		List<Rexp.REXP> forestValues = new ArrayList<Rexp.REXP>();
+
+		if(classification){
+			int[] treemap = new int[2 * nrnodes * ntree];
+
+			for(int i = 0; i < ntree; i++){
+				System.arraycopy(leftDaughter, i * nrnodes, treemap, (2 * i) * nrnodes, nrnodes);
+				System.arraycopy(rightDaughter, i * nrnodes, treemap, (2 * i + 1) * nrnodes, nrnodes);
+			}
+
+			int[] classes = new int[nodepred.length];
+
+			for(int i = 0; i < nodepred.length; i++){
+				classes[i] = (int)nodepred[i];
+			}
+
+			forestNames.add("treemap");
+			forestValues.add(createInteger(treemap));
+
+			forestNames.add("nodepred");
+			forestValues.add(createInteger(classes));
+		} else
+
+		{
+			forestNames.add("leftDaughter");
+			forestValues.add(createInteger(leftDaughter));
+
+			forestNames.add("rightDaughter");
+			forestValues.add(createInteger(rightDaughter));
+
+			forestNames.add("nodepred");
+			forestValues.add(createReal(nodepred));
+		}
+
+		forestNames.add("bestvar");
+		forestValues.add(createInteger(bestvar));
+
+		forestNames.add("xbestsplit");
+		forestValues.add(createReal(xbestsplit));
+
+		forestNames.add("ncat");
+		forestValues.add(createInteger(ncat));
+
+		forestNames.add("nrnodes");
+		forestValues.add(createInteger(new int[]{nrnodes}));
+
+		forestNames.add("ntree");
+		forestValues.add(createReal(new double[]{ntree}));
+
+		forestNames.add("xlevels");
+		forestValues.add(createList(names, xlevels));
+
+		List<String> randomForestNames = new ArrayList<String>();
+		List<Rexp.REXP> randomForestValues = new ArrayList<Rexp.REXP>();
+
+		randomForestNames.add("type");
+		randomForestValues.add(createString(type));
+
+		randomForestNames.add("forest");
+		randomForestValues.add(createList(forestNames, forestValues));
+
+		if(classification){
+			List<String> levels = new ArrayList<String>();
+
+			for(int i = 0; i < nclass; i++){
+				levels.add("class" + (i + 1));
+			}
+
+			Rexp.REXP y = createInteger(new int[]{1, 2, 3}).toBuilder()
+				.addAttrName("levels")
+				.addAttrValue(createString(levels))
+				.addAttrName("class")
+				.addAttrValue(createString("factor"))
+				.build();
+
+			randomForestNames.add("y");
+			randomForestValues.add(y);
+		}
+
+		return withClass(createList(randomForestNames, randomForestValues), "randomForest");
+	}
+
+	/**
+	 * Generates a <code>kmeans</code> object.
+	 */
+	public Rexp.REXP generateKMeans(int clusters, int predictors){
+		double[] centers = new double[clusters * predictors];
+
+		for(int i = 0; i < centers.length; i++){
+			centers[i] = this.random.nextGaussian();
+		}
+
+		int[] size = new int[clusters];
+
+		List<String> rowNames = new ArrayList<String>();
+
+		for(int i = 0; i < clusters; i++){
+			size[i] = 1 + this.random.nextInt(1000);
+
+			rowNames.add(String.valueOf(i + 1));
+		}
+
+		List<String> columnNames = new ArrayList<String>();
+
+		for(int i = 0; i < predictors; i++){
+			columnNames.add("x" + (i + 1));
+		}
+
+		Rexp.REXP dimnames = Rexp.REXP.newBuilder()
+			.setRclass(Rexp.REXP.RClass.LIST)
+			.addRexpValue(createString(rowNames))
+			.addRexpValue(createString(columnNames))
+			.build();
+
+		Rexp.REXP centersValue = createReal(centers).toBuilder()
+			.addAttrName("dim")
+			.addAttrValue(createInteger(new int[]{clusters, predictors}))
+			.addAttrName("dimnames")
+			.addAttrValue(dimnames)
+			.build();
+
+		List<String> names = new ArrayList<String>();
+		List<Rexp.REXP> values = new ArrayList<Rexp.REXP>();
+
+		names.add("centers");
+		values.add(centersValue);
+
+		names.add("size");
+		values.add(createInteger(size));
+
+		return withClass(createList(names, values), "kmeans");
+	}
+
+	/**
+	 * @return A random bitmask of a categorical split, other than all-left or all-right. R supports factors with up to 53 levels.
+	 */
+	private double nextMask(int levels){
+
+		if(levels < 31){
+			return (1 + this.random.nextInt((1 << levels) - 2));
+		}
+
+		long bound = (1L << Math.min(levels, 53)) - 2;
+
+		return (1 + ((this.random.nextLong() >>> 1) % bound));
+	}
+
+	static
+	private Rexp.REXP createList(List<String> names, List<Rexp.REXP> values){
+		Rexp.REXP result = Rexp.REXP.newBuilder()
+			.setRclass(Rexp.REXP.RClass.LIST)
+			.addAllRexpValue(values)
+			.addAttrName("names")
+			.addAttrValue(createString(names))
+			.build();
+
+		return result;
+	}
+
+	static
+	private Rexp.REXP withClass(Rexp.REXP rexp, String clazz){
+		return rexp.toBuilder()
+			.addAttrName("class")
+			.addAttrValue(createString(clazz))
+			.build();
+	}
+
+	static
+	private Rexp.REXP createString(String value){
+		List<String> values = new ArrayList<String>();
+		values.add(value);
+
+		return createString(values);
+	}
+
+	static
+	private Rexp.REXP createString(List<String> values){
+		Rexp.REXP.Builder builder = Rexp.REXP.newBuilder()
+			.setRclass(Rexp.REXP.RClass.STRING);
+
+		for(String value : values){
+			builder.addStringValue(Rexp.STRING.newBuilder().setStrval(value));
+		}
+
+		return builder.build();
+	}
+
+	static
+	private Rexp.REXP createInteger(int[] values){
+		Rexp.REXP.Builder builder = Rexp.REXP.newBuilder()
+			.setRclass(Rexp.REXP.RClass.INTEGER);
+
+		for(int value : values){
+			builder.addIntValue(value);
+		}
+
+		return builder.build();
+	}
+
+	static
+	private Rexp.REXP createReal(double[] values){
+		Rexp.REXP.Builder builder = Rexp.REXP.newBuilder()
+			.setRclass(Rexp.REXP.RClass.REAL);
+
+		for(double value : values){
+			builder.addRealValue(value);
+		}
+
+		return builder.build();
+	}
+}
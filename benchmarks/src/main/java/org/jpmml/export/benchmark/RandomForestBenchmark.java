@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.dmg.pmml.PMML;
+import org.jpmml.export.CompiledForest;
+import org.jpmml.export.LazyREXP;
+import org.jpmml.export.RandomForestCompiler;
+import org.jpmml.export.RandomForestConverter;
+import org.jpmml.export.RandomForestEvaluator;
+import org.jpmml.model.JAXBUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rexp.Rexp;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RandomForestBenchmark {
+
+	@Param({"regression", "classification"})
+	public String type;
+
+	@Param({"100"})
+	public int ntree;
+
+	@Param({"1001"})
+	public int nrnodes;
+
+	@Param({"30"})
+	public int predictors;
+
+	@Param({"8"})
+	public int cardinality;
+
+	@Param({"10000"})
+	public int rows;
+
+	private byte[] bytes = null;
+
+	private Rexp.REXP randomForest = null;
+
+	private PMML pmml = null;
+
+	private RandomForestEvaluator evaluator = null;
+
+	private CompiledForest compiledForest = null;
+
+	private double[][] data = null;
+
+
+	@Setup
+	public void setup() throws Exception {
+		REXPGenerator generator = new REXPGenerator(42L);
+
+		this.randomForest = generator.generateRandomForest(this.type, this.ntree, this.nrnodes, this.predictors, this.cardinality);
+		this.bytes = this.randomForest.toByteArray();
+
+		RandomForestConverter converter = new RandomForestConverter();
+
+		this.pmml = converter.convert(this.randomForest);
+
+		checkStreaming();
+
+		this.evaluator = new RandomForestEvaluator(LazyREXP.wrap(this.randomForest));
+
+		RandomForestCompiler compiler = new RandomForestCompiler(this.evaluator);
+		compiler.setPmml(this.pmml);
+
+		this.compiledForest = compiler.compile();
+
+		Random random = new Random(42L);
+
+		this.data = new double[this.rows][this.predictors];
+
+		for(int i = 0; i < this.rows; i++){
+
+			for(int j = 0; j < this.predictors; j++){
+				boolean categorical = (this.cardinality > 1) && (j % 3 == 2);
+
+				this.data[i][j] = (categorical ? random.nextInt(this.cardinality) : random.nextGaussian());
+			}
+		}
+	}
+
+	/**
+	 * Binary indicator fields are refined to boolean fields before trees are encoded by the streaming conversion, but after that by the in-memory conversion.
+	 * The PMML documents must nevertheless be the same.
+	 */
+	private void checkStreaming() throws Exception {
+		String expected = toString(this.pmml);
+
+		for(boolean spill : new boolean[]{false, true}){
+			RandomForestConverter converter = new RandomForestConverter();
+			converter.setSpill(spill);
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+			converter.convert(LazyREXP.wrap(this.randomForest), os);
+
+			PMML pmml = JAXBUtil.unmarshalPMML(new StreamSource(new ByteArrayInputStream(os.toByteArray())));
+
+			if(!(expected).equals(toString(pmml))){
+				throw new IllegalStateException("The " + (spill ? "spilling" : "streaming") + " conversion differs from the in-memory conversion");
+			}
+		}
+	}
+
+	@Benchmark
+	public Rexp.REXP parse() throws Exception {
+		return Rexp.REXP.parseFrom(this.bytes);
+	}
+
+	@Benchmark
+	public PMML convert(){
+		RandomForestConverter converter = new RandomForestConverter();
+
+		return converter.convert(this.randomForest);
+	}
+
+	@Benchmark
+	public void marshal() throws Exception {
+		JAXBUtil.marshalPMML(this.pmml, new StreamResult(new NullOutputStream()));
+	}
+
+	@Benchmark
+	public double[] predict(){
+		return this.evaluator.predict(this.data);
+	}
+
+	@Benchmark
+	public double[] predictCompiled(){
+		return this.compiledForest.predict(this.data);
+	}
+
+	static
+	private String toString(PMML pmml) throws Exception {
+		StringWriter writer = new StringWriter();
+
+		JAXBUtil.marshalPMML(pmml, new StreamResult(writer));
+
+		return writer.toString();
+	}
+}
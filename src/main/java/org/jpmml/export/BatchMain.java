@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.stream.StreamResult;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import org.dmg.pmml.PMML;
+import org.jpmml.model.JAXBUtil;
+
+/**
+ * Converts many ProtoBuf files in one JVM.
+ *
+ * The input files are listed either by a directory (all <code>*.pb</code> files) or by a manifest file (one input file per line, optionally followed by an output file).
+ * A failed conversion is reported, and does not stop the batch.
+ */
+public class BatchMain {
+
+	@Parameter (
+		names = "--pb-input-dir",
+		description = "Directory of ProtoBuf input files"
+	)
+	private File inputDir = null;
+
+	@Parameter (
+		names = "--manifest",
+		description = "Manifest file"
+	)
+	private File manifest = null;
+
+	@Parameter (
+		names = "--pmml-output-dir",
+		description = "Directory of PMML output files",
+		required = true
+	)
+	private File outputDir = null;
+
+	@Parameter (
+		names = "--mmap",
+		description = "Memory-map the ProtoBuf input files"
+	)
+	private boolean mmap = false;
+
+	@Parameter (
+		names = "--stream",
+		description = "Write PMML documents incrementally, without holding all of them in memory"
+	)
+	private boolean stream = false;
+
+	@Parameter (
+		names = "--gzip",
+		description = "Compress the PMML output files. Implied by the \".gz\" file name suffix"
+	)
+	private boolean gzip = false;
+
+	@Parameter (
+		names = "--threads",
+		description = "The number of files that are converted in parallel"
+	)
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+
+	static
+	public void main(String... args) throws Exception {
+		BatchMain main = new BatchMain();
+
+		JCommander commander = new JCommander(main);
+		commander.setProgramName(BatchMain.class.getName());
+
+		try {
+			commander.parse(args);
+		} catch(ParameterException pe){
+			commander.usage();
+
+			System.exit(-1);
+		}
+
+		int failures = main.run();
+		if(failures > 0){
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return The number of failed conversions.
+	 */
+	public int run() throws Exception {
+		List<Conversion> conversions = loadConversions();
+
+		if(!this.outputDir.isDirectory() && !this.outputDir.mkdirs()){
+			throw new IOException("Cannot create directory " + this.outputDir);
+		}
+
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, this.threads));
+
+		int failures = 0;
+
+		try {
+			CompletionService<Conversion> completionService = new ExecutorCompletionService<Conversion>(executorService);
+
+			for(Conversion conversion : conversions){
+				completionService.submit(conversion);
+			}
+
+			long start = System.currentTimeMillis();
+
+			for(int i = 0; i < conversions.size(); i++){
+				Future<Conversion> future = completionService.take();
+
+				Conversion conversion;
+
+				try {
+					conversion = future.get();
+				} catch(ExecutionException ee){
+					// Conversions catch their own failures, so this is not expected
+					System.out.println("FAILED: " + ee.getCause());
+
+					failures++;
+
+					continue;
+				}
+
+				Throwable failure = conversion.getFailure();
+				if(failure != null){
+					System.out.println("FAILED " + conversion.getInput() + " in " + conversion.getTime() + " ms: " + failure);
+
+					failures++;
+				} else
+
+				{
+					System.out.println("Converted " + conversion.getInput() + " to " + conversion.getOutput() + " in " + conversion.getTime() + " ms.");
+				}
+			}
+
+			long end = System.currentTimeMillis();
+
+			System.out.println("Converted " + (conversions.size() - failures) + " of " + conversions.size() + " files in " + (end - start) + " ms.");
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		return failures;
+	}
+
+	private List<Conversion> loadConversions() throws IOException {
+		List<Conversion> result = new ArrayList<Conversion>();
+
+		if(this.inputDir != null && this.manifest == null){
+			File[] files = this.inputDir.listFiles();
+			if(files == null){
+				throw new IOException("Cannot list directory " + this.inputDir);
+			}
+
+			Arrays.sort(files);
+
+			for(File file : files){
+
+				if(file.isFile() && (file.getName()).endsWith(".pb")){
+					result.add(new Conversion(file, getOutput(file)));
+				}
+			}
+		} else
+
+		if(this.manifest != null && this.inputDir == null){
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.manifest), "UTF-8"));
+
+			try {
+				File base = (this.manifest.getAbsoluteFile()).getParentFile();
+
+				while(true){
+					String line = reader.readLine();
+					if(line == null){
+						break;
+					}
+
+					line = line.trim();
+
+					if(line.length() == 0 || line.startsWith("#")){
+						continue;
+					}
+
+					String[] paths = line.split("\\s+");
+					if(paths.length > 2){
+						throw new IllegalArgumentException(line);
+					}
+
+					File input = resolve(base, paths[0]);
+					File output = (paths.length > 1 ? resolve(this.outputDir, paths[1]) : getOutput(input));
+
+					result.add(new Conversion(input, output));
+				}
+			} finally {
+				reader.close();
+			}
+		} else
+
+		{
+			throw new IllegalArgumentException("Exactly one of --pb-input-dir and --manifest must be specified");
+		}
+
+		return result;
+	}
+
+	private File getOutput(File input){
+		String name = input.getName();
+
+		if(name.endsWith(".pb")){
+			name = name.substring(0, name.length() - ".pb".length());
+		}
+
+		return new File(this.outputDir, name + (this.gzip ? ".pmml.gz" : ".pmml"));
+	}
+
+	private void convert(File input, File output) throws Exception {
+		ProtoBufSource source = (this.mmap ? new MappedFileSource(input) : new FileSource(input));
+
+		try {
+			LazyREXP rexp = LazyREXP.parse(source);
+
+			// Files are converted in parallel, so the trees of a single file are not
+			Converter converter = Main.createConverter(rexp, null);
+
+			OutputStream os;
+
+			// Files are compressed sequentially, for the same reason
+			if(this.gzip || (output.getName()).endsWith(".gz")){
+				os = new ParallelGZIPOutputStream(new FileOutputStream(output), null);
+			} else
+
+			{
+				os = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+			}
+
+			try {
+
+				try {
+
+					if(this.stream){
+						converter.convert(rexp, os);
+					} else
+
+					{
+						PMML pmml = converter.convert(rexp);
+
+						JAXBUtil.marshalPMML(pmml, new StreamResult(os));
+					}
+				} finally {
+					os.close();
+				}
+			} catch(Throwable t){
+				// Do not leave an empty or incomplete output file behind
+				output.delete();
+
+				throw t;
+			}
+		} finally {
+			source.close();
+		}
+	}
+
+	public File getInputDir(){
+		return this.inputDir;
+	}
+
+	public void setInputDir(File inputDir){
+		this.inputDir = inputDir;
+	}
+
+	public File getManifest(){
+		return this.manifest;
+	}
+
+	public void setManifest(File manifest){
+		this.manifest = manifest;
+	}
+
+	public File getOutputDir(){
+		return this.outputDir;
+	}
+
+	public void setOutputDir(File outputDir){
+
+		if(outputDir == null){
+			throw new NullPointerException();
+		}
+
+		this.outputDir = outputDir;
+	}
+
+	public boolean getMmap(){
+		return this.mmap;
+	}
+
+	public void setMmap(boolean mmap){
+		this.mmap = mmap;
+	}
+
+	public boolean getStream(){
+		return this.stream;
+	}
+
+	public void setStream(boolean stream){
+		this.stream = stream;
+	}
+
+	public boolean getGzip(){
+		return this.gzip;
+	}
+
+	public void setGzip(boolean gzip){
+		this.gzip = gzip;
+	}
+
+	public int getThreads(){
+		return this.threads;
+	}
+
+	public void setThreads(int threads){
+		this.threads = threads;
+	}
+
+	static
+	private File resolve(File base, String path){
+		File file = new File(path);
+
+		if(!file.isAbsolute()){
+			file = new File(base, path);
+		}
+
+		return file;
+	}
+
+	private class Conversion implements Callable<Conversion> {
+
+		private File input = null;
+
+		private File output = null;
+
+		private long time = 0;
+
+		private Throwable failure = null;
+
+
+		private Conversion(File input, File output){
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public Conversion call(){
+			long start = System.currentTimeMillis();
+
+			try {
+				convert(this.input, this.output);
+			} catch(Throwable t){
+				this.failure = t;
+			}
+
+			long end = System.currentTimeMillis();
+
+			this.time = (end - start);
+
+			return this;
+		}
+
+		public File getInput(){
+			return this.input;
+		}
+
+		public File getOutput(){
+			return this.output;
+		}
+
+		public long getTime(){
+			return this.time;
+		}
+
+		public Throwable getFailure(){
+			return this.failure;
+		}
+	}
+}
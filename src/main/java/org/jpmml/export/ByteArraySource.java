@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * A ProtoBuf source that reads bytes from memory.
+ */
+public class ByteArraySource extends ProtoBufSource {
+
+	private byte[] bytes = null;
+
+
+	public ByteArraySource(byte[] bytes){
+		this.bytes = bytes;
+	}
+
+	@Override
+	public long size(){
+		return this.bytes.length;
+	}
+
+	@Override
+	public CodedInputStream newCodedInputStream(long position, long length){
+		CodedInputStream cis = CodedInputStream.newInstance(this.bytes, (int)position, (int)length);
+		cis.setSizeLimit(Integer.MAX_VALUE);
+
+		return cis;
+	}
+
+	@Override
+	public void close(){
+		this.bytes = null;
+	}
+}
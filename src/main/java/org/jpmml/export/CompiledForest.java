@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+/**
+ * The superclass of Random Forest scorers that are generated by {@link RandomForestCompiler}.
+ *
+ * Data records have the same layout as in {@link RandomForestEvaluator}.
+ */
+abstract
+public class CompiledForest {
+
+	abstract
+	public int getTreeCount();
+
+	/**
+	 * @return The predicted value (regression) or the 0-based index of the predicted class (classification) of the specified tree.
+	 */
+	abstract
+	public double evaluateTree(int tree, double[] row);
+
+	/**
+	 * @return The mean of the predicted values of all trees (regression) or the 0-based index of the class that receives the most votes (classification).
+	 */
+	abstract
+	public double predict(double[] row);
+
+	public double[] predict(double[][] rows){
+		double[] result = new double[rows.length];
+
+		for(int i = 0; i < rows.length; i++){
+			result[i] = predict(rows[i]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return The index of the class that receives the most votes. Ties are broken in favour of the class with the lowest index.
+	 */
+	static
+	protected double getWinner(int[] votes){
+		int winner = 0;
+
+		for(int i = 1; i < votes.length; i++){
+
+			if(votes[i] > votes[winner]){
+				winner = i;
+			}
+		}
+
+		return winner;
+	}
+}
@@ -3,25 +3,188 @@
  */
 package org.jpmml.export;
 
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.stream.StreamResult;
+
 import com.google.common.math.DoubleMath;
 import org.dmg.pmml.PMML;
+import org.jpmml.model.JAXBUtil;
 import rexp.Rexp;
 
 abstract
 public class Converter {
 
+	private Metrics metrics = null;
+
+	private ConverterListener listener = null;
+
+	private Long deadline = null;
+
+	private volatile boolean cancelled = false;
+
+	private long startTime = 0;
+
+	private int totalTrees = 0;
+
+	private AtomicInteger completedTrees = new AtomicInteger(0);
+
+	private AtomicLong nodes = new AtomicLong(0);
+
+
 	abstract
-	public PMML convert(Rexp.REXP rexp);
+	public PMML convert(LazyREXP rexp);
+
+	public PMML convert(Rexp.REXP rexp){
+		return convert(LazyREXP.wrap(rexp));
+	}
+
+	/**
+	 * Converts and writes the PMML document.
+	 * Converters that are able to write the document incrementally should override this method.
+	 */
+	public void convert(LazyREXP rexp, OutputStream os) throws Exception {
+		PMML pmml = convert(rexp);
+
+		JAXBUtil.marshalPMML(pmml, new StreamResult(os));
+	}
+
+	/**
+	 * @return A started timer, or <code>null</code> if metrics are not collected.
+	 */
+	protected Metrics.Timer startTimer(String phase){
+		Metrics metrics = getMetrics();
+
+		if(metrics == null){
+			return null;
+		}
+
+		return metrics.startTimer(phase);
+	}
+
+	/**
+	 * @return The wall time of the timer in nanoseconds, or <code>-1</code> if metrics are not collected.
+	 */
+	protected long stopTimer(Metrics.Timer timer){
+
+		if(timer == null){
+			return -1;
+		}
+
+		return timer.stop();
+	}
+
+	/**
+	 * Marks the beginning of tree encoding.
+	 *
+	 * @param trees The number of trees that will be encoded.
+	 */
+	protected void startProgress(int trees){
+		this.startTime = System.nanoTime();
+		this.totalTrees = trees;
+		this.completedTrees.set(0);
+		this.nodes.set(0);
+
+		checkCancelled();
+	}
+
+	/**
+	 * Marks the end of encoding a tree, and notifies the listener.
+	 *
+	 * @param nodes The number of nodes in the tree.
+	 */
+	protected void updateProgress(int nodes){
+		int completedTrees = this.completedTrees.incrementAndGet();
+		long completedNodes = this.nodes.addAndGet(nodes);
+
+		ConverterListener listener = getListener();
+		if(listener != null){
+			Progress progress = new Progress(completedTrees, this.totalTrees, completedNodes, System.nanoTime() - this.startTime);
+
+			listener.progressChanged(this, progress);
+		}
+	}
+
+	/**
+	 * @throws CancellationException If the conversion has been cancelled, or its deadline has passed.
+	 */
+	protected void checkCancelled(){
+
+		if(this.cancelled){
+			throw new CancellationException("Conversion was cancelled");
+		}
+
+		Long deadline = getDeadline();
+		if(deadline != null && System.currentTimeMillis() > deadline.longValue()){
+			throw new CancellationException("Conversion deadline was exceeded");
+		}
+	}
+
+	/**
+	 * Asks the conversion to stop.
+	 * The conversion is not interrupted, but it fails with a {@link CancellationException} before encoding the next tree.
+	 */
+	public void cancel(){
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled(){
+		return this.cancelled;
+	}
+
+	public Metrics getMetrics(){
+		return this.metrics;
+	}
+
+	/**
+	 * @param metrics A collector of performance metrics, or <code>null</code>.
+	 */
+	public void setMetrics(Metrics metrics){
+		this.metrics = metrics;
+	}
+
+	public ConverterListener getListener(){
+		return this.listener;
+	}
+
+	/**
+	 * @param listener A listener for the progress of tree encoding, or <code>null</code>.
+	 */
+	public void setListener(ConverterListener listener){
+		this.listener = listener;
+	}
+
+	public Long getDeadline(){
+		return this.deadline;
+	}
+
+	/**
+	 * @param deadline The time (in milliseconds since the epoch, as {@link System#currentTimeMillis()}) by which the conversion must complete, or <code>null</code>.
+	 * The deadline is checked before encoding every tree.
+	 */
+	public void setDeadline(Long deadline){
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @see NumberFormatter#format(double)
+	 */
+	static
+	public String formatValue(double value){
+		return NumberFormatter.format(value);
+	}
 
 	static
 	public String formatValue(Number number){
-		double value = number.doubleValue();
 
-		if(DoubleMath.isMathematicalInteger(value)){
+		if(number instanceof Integer || number instanceof Long){
 			return Long.toString(number.longValue());
 		}
 
-		return Double.toString(value);
+		return NumberFormatter.format(number.doubleValue());
 	}
 
 	static
@@ -49,4 +212,93 @@ public class Converter {
 
 		return number.doubleValue();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The progress of tree encoding.
+	 */
+	static
+	public class Progress {
+
+		private int completedTrees = 0;
+
+		private int totalTrees = 0;
+
+		private long nodes = 0;
+
+		private long elapsedTime = 0;
+
+		private long usedMemory = 0;
+
+		private long maxMemory = 0;
+
+
+		private Progress(int completedTrees, int totalTrees, long nodes, long elapsedTime){
+			this.completedTrees = completedTrees;
+			this.totalTrees = totalTrees;
+			this.nodes = nodes;
+			this.elapsedTime = elapsedTime;
+
+			Runtime runtime = Runtime.getRuntime();
+
+			this.usedMemory = (runtime.totalMemory() - runtime.freeMemory());
+			this.maxMemory = runtime.maxMemory();
+		}
+
+		public int getCompletedTrees(){
+			return this.completedTrees;
+		}
+
+		public int getTotalTrees(){
+			return this.totalTrees;
+		}
+
+		/**
+		 * @return The number of nodes in completed trees.
+		 */
+		public long getNodes(){
+			return this.nodes;
+		}
+
+		/**
+		 * @return The time since the beginning of tree encoding in nanoseconds.
+		 */
+		public long getElapsedTime(){
+			return this.elapsedTime;
+		}
+
+		/**
+		 * @return The estimated time until the end of tree encoding in nanoseconds, assuming that the remaining trees are encoded at the same rate as the completed trees.
+		 */
+		public long getRemainingTime(){
+
+			if(this.completedTrees == 0){
+				return -1;
+			}
+
+			return (long)((double)this.elapsedTime * (this.totalTrees - this.completedTrees) / this.completedTrees);
+		}
+
+		public double getNodesPerSecond(){
+
+			if(this.elapsedTime == 0){
+				return 0d;
+			}
+
+			return (this.nodes * 1e9) / this.elapsedTime;
+		}
+
+		/**
+		 * @return The size of the heap that is in use, in bytes.
+		 */
+		public long getUsedMemory(){
+			return this.usedMemory;
+		}
+
+		/**
+		 * @return The maximum size of the heap, in bytes.
+		 */
+		public long getMaxMemory(){
+			return this.maxMemory;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+/**
+ * A listener for the progress of a conversion.
+ *
+ * Trees may be encoded concurrently, so the listener may be called from several threads at the same time.
+ * The listener should return quickly. It may stop the conversion by calling {@link Converter#cancel()}.
+ */
+public interface ConverterListener {
+
+	/**
+	 * Called after a tree has been encoded.
+	 */
+	void progressChanged(Converter converter, Converter.Progress progress);
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+/**
+ * A view over a column-major matrix of <code>double</code> values.
+ *
+ * Row and column views share the backing array with the matrix that they were obtained from.
+ */
+public class DoubleMatrix extends Matrix {
+
+	private double[] values = null;
+
+
+	/**
+	 * @param values The elements of an R matrix (ie. column-major order).
+	 */
+	public DoubleMatrix(double[] values, int rows, int columns){
+		super(0, rows, columns, 1, rows);
+
+		if(values.length < (rows * columns)){
+			throw new IllegalArgumentException();
+		}
+
+		this.values = values;
+	}
+
+	private DoubleMatrix(double[] values, int offset, int rows, int columns, int rowStride, int columnStride){
+		super(offset, rows, columns, rowStride, columnStride);
+
+		this.values = values;
+	}
+
+	public double get(int row, int column){
+		return this.values[getIndex(row, column)];
+	}
+
+	/**
+	 * @param index The index of the element in column-major order.
+	 */
+	public double get(int index){
+		return this.values[getIndex(index)];
+	}
+
+	public DoubleMatrix getRow(int row){
+		return new DoubleMatrix(this.values, getIndex(row, 0), 1, getColumns(), getRowStride(), getColumnStride());
+	}
+
+	public DoubleMatrix getColumn(int column){
+		return new DoubleMatrix(this.values, getIndex(0, column), getRows(), 1, getRowStride(), getColumnStride());
+	}
+}
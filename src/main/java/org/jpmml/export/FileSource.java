@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * A ProtoBuf source that reads bytes from a file on demand.
+ *
+ * Every {@link CodedInputStream} performs positional reads against a shared {@link FileChannel}, so any number of them can be open at the same time.
+ */
+public class FileSource extends ProtoBufSource {
+
+	private RandomAccessFile file = null;
+
+	private FileChannel channel = null;
+
+	private long size = 0;
+
+
+	public FileSource(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.size = this.channel.size();
+	}
+
+	@Override
+	public long size(){
+		return this.size;
+	}
+
+	@Override
+	public CodedInputStream newCodedInputStream(long position, long length){
+		return newCodedInputStream(new ChannelInputStream(this.channel, position, length));
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.file.close();
+	}
+
+	static
+	private class ChannelInputStream extends InputStream {
+
+		private FileChannel channel = null;
+
+		private long position = 0;
+
+		private long end = 0;
+
+
+		private ChannelInputStream(FileChannel channel, long position, long length){
+			this.channel = channel;
+			this.position = position;
+			this.end = position + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buffer = new byte[1];
+
+			int count = read(buffer, 0, 1);
+			if(count < 0){
+				return -1;
+			}
+
+			return (buffer[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			long remaining = (this.end - this.position);
+
+			if(remaining <= 0){
+				return -1;
+			}
+
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, (int)Math.min(length, remaining));
+
+			int count = this.channel.read(byteBuffer, this.position);
+			if(count < 0){
+				return -1;
+			}
+
+			this.position += count;
+
+			return count;
+		}
+
+		@Override
+		public long skip(long n){
+			long count = Math.max(0, Math.min(n, this.end - this.position));
+
+			this.position += count;
+
+			return count;
+		}
+
+		@Override
+		public int available(){
+			return (int)Math.min(this.end - this.position, Integer.MAX_VALUE);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+/**
+ * A view over a column-major matrix of <code>int</code> values.
+ *
+ * Row and column views share the backing array with the matrix that they were obtained from.
+ */
+public class IntMatrix extends Matrix {
+
+	private int[] values = null;
+
+
+	/**
+	 * @param values The elements of an R matrix (ie. column-major order).
+	 */
+	public IntMatrix(int[] values, int rows, int columns){
+		super(0, rows, columns, 1, rows);
+
+		if(values.length < (rows * columns)){
+			throw new IllegalArgumentException();
+		}
+
+		this.values = values;
+	}
+
+	private IntMatrix(int[] values, int offset, int rows, int columns, int rowStride, int columnStride){
+		super(offset, rows, columns, rowStride, columnStride);
+
+		this.values = values;
+	}
+
+	public int get(int row, int column){
+		return this.values[getIndex(row, column)];
+	}
+
+	/**
+	 * @param index The index of the element in column-major order.
+	 */
+	public int get(int index){
+		return this.values[getIndex(index)];
+	}
+
+	public IntMatrix getRow(int row){
+		return new IntMatrix(this.values, getIndex(row, 0), 1, getColumns(), getRowStride(), getColumnStride());
+	}
+
+	public IntMatrix getColumn(int column){
+		return new IntMatrix(this.values, getIndex(0, column), getRows(), 1, getRowStride(), getColumnStride());
+	}
+}
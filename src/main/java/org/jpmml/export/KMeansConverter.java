@@ -3,8 +3,6 @@
  */
 package org.jpmml.export;
 
-import java.util.List;
-
 import org.dmg.pmml.Array;
 import org.dmg.pmml.Cluster;
 import org.dmg.pmml.ClusteringField;
@@ -31,16 +29,18 @@ import rexp.Rexp.STRING;
 public class KMeansConverter extends Converter {
 
 	@Override
-	public PMML convert(Rexp.REXP kmeans){
-		Rexp.REXP centers = REXPUtil.field(kmeans, "centers");
-		Rexp.REXP size = REXPUtil.field(kmeans, "size");
+	public PMML convert(LazyREXP kmeans){
+		LazyREXP centers = REXPUtil.field(kmeans, "centers");
+		Rexp.REXP size = (REXPUtil.field(kmeans, "size")).getValue();
 
-		Rexp.REXP dim = REXPUtil.attribute(centers, "dim");
-		Rexp.REXP dimnames = REXPUtil.attribute(centers, "dimnames");
+		Rexp.REXP dim = (REXPUtil.find(kmeans, "centers/@dim")).getValue();
+		Rexp.REXP dimnames = (REXPUtil.find(kmeans, "centers/@dimnames")).getValue();
 
 		int rows = dim.getIntValue(0);
 		int columns = dim.getIntValue(1);
 
+		DoubleMatrix centerMatrix = new DoubleMatrix(centers.getRealValues(), rows, columns);
+
 		DataDictionary dataDictionary = new DataDictionary();
 
 		MiningSchema miningSchema = new MiningSchema();
@@ -57,7 +57,7 @@ public class KMeansConverter extends Converter {
 
 			Cluster cluster = new Cluster()
 				.withName(name.getStrval())
-				.withArray(encodeArray(REXPUtil.getRow(centers.getRealValueList(), i, rows, columns)))
+				.withArray(encodeArray(centerMatrix.getRow(i)))
 				.withSize(size.getIntValue(i));
 
 			clusteringModel = clusteringModel.withClusters(cluster);
@@ -91,7 +91,7 @@ public class KMeansConverter extends Converter {
 		return pmml;
 	}
 
-	private Array encodeArray(List<Double> values){
+	private Array encodeArray(DoubleMatrix values){
 		String value = formatArrayValue(values);
 
 		Array array = new Array(value, Array.Type.REAL);
@@ -100,15 +100,15 @@ public class KMeansConverter extends Converter {
 	}
 
 	static
-	private String formatArrayValue(List<Double> values){
+	private String formatArrayValue(DoubleMatrix values){
 		StringBuilder sb = new StringBuilder();
 
 		String sep = "";
 
-		for(Double value : values){
+		for(int i = 0; i < values.size(); i++){
 			sb.append(sep);
 
-			sb.append(formatValue(value));
+			NumberFormatter.append(sb, values.get(i));
 
 			sep = " ";
 		}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import rexp.Rexp;
+
+/**
+ * A REXP message that is decoded on demand.
+ *
+ * The first access to the structure of a message records the byte offsets of its list elements and attribute values, and skips everything else.
+ * The element values are decoded into {@link Rexp.REXP} objects only when they are explicitly requested.
+ *
+ * Attributes and list elements can be looked up by name. The names are indexed by hash maps on first use.
+ */
+public class LazyREXP {
+
+	private ProtoBufSource source = null;
+
+	private long position = 0;
+
+	private long length = 0;
+
+	private Rexp.REXP value = null;
+
+	private Rexp.REXP.RClass rclass = null;
+
+	private List<LazyREXP> rexpValues = null;
+
+	private List<String> attrNames = null;
+
+	private List<LazyREXP> attrValues = null;
+
+	private Map<String, Integer> attrIndex = null;
+
+	private List<String> fieldNames = null;
+
+	private Map<String, Integer> fieldIndex = null;
+
+
+	private LazyREXP(ProtoBufSource source, long position, long length){
+		this.source = source;
+		this.position = position;
+		this.length = length;
+	}
+
+	private LazyREXP(Rexp.REXP value){
+		this.value = value;
+	}
+
+	synchronized
+	public Rexp.REXP.RClass getRclass(){
+		ensureScanned();
+
+		return this.rclass;
+	}
+
+	synchronized
+	public int getRexpValueCount(){
+		ensureScanned();
+
+		return this.rexpValues.size();
+	}
+
+	synchronized
+	public LazyREXP getRexpValue(int index){
+		ensureScanned();
+
+		return this.rexpValues.get(index);
+	}
+
+	synchronized
+	public int getAttrNameCount(){
+		ensureScanned();
+
+		return this.attrNames.size();
+	}
+
+	synchronized
+	public String getAttrName(int index){
+		ensureScanned();
+
+		return this.attrNames.get(index);
+	}
+
+	synchronized
+	public LazyREXP getAttrValue(int index){
+		ensureScanned();
+
+		return this.attrValues.get(index);
+	}
+
+	synchronized
+	public Optional<LazyREXP> getAttribute(String name){
+		ensureScanned();
+
+		Integer index = this.attrIndex.get(name);
+		if(index == null){
+			return Optional.absent();
+		}
+
+		return Optional.of(this.attrValues.get(index));
+	}
+
+	/**
+	 * @return The names of list elements, as given by the <code>names</code> attribute.
+	 */
+	synchronized
+	public List<String> getFieldNames(){
+		ensureIndexed();
+
+		return this.fieldNames;
+	}
+
+	/**
+	 * @return The list element that is named by the <code>names</code> attribute.
+	 */
+	synchronized
+	public Optional<LazyREXP> getField(String name){
+		ensureIndexed();
+
+		Integer index = this.fieldIndex.get(name);
+		if(index == null){
+			return Optional.absent();
+		}
+
+		return Optional.of(getRexpValue(index));
+	}
+
+	/**
+	 * @param path A sequence of names that are separated by <code>/</code>. A name that starts with <code>@</code> refers to an attribute, and all other names refer to list elements. For example, <code>forest/xbestsplit</code> or <code>y/@levels</code>.
+	 */
+	public Optional<LazyREXP> find(String path){
+		LazyREXP result = this;
+
+		String[] names = path.split("/");
+		for(String name : names){
+			Optional<LazyREXP> child = (name.startsWith("@") ? result.getAttribute(name.substring(1)) : result.getField(name));
+
+			if(!child.isPresent()){
+				return child;
+			}
+
+			result = child.get();
+		}
+
+		return Optional.of(result);
+	}
+
+	/**
+	 * Decodes this message completely.
+	 */
+	synchronized
+	public Rexp.REXP getValue(){
+
+		if(this.value == null){
+
+			try {
+				CodedInputStream input = this.source.newCodedInputStream(this.position, this.length);
+
+				this.value = Rexp.REXP.parseFrom(input);
+			} catch(IOException ioe){
+				throw Throwables.propagate(ioe);
+			}
+		}
+
+		return this.value;
+	}
+
+	/**
+	 * Decodes the <code>intValue</code> field directly into an array, without materializing this message.
+	 */
+	synchronized
+	public int[] getIntValues(){
+
+		if(this.value != null){
+			return Ints.toArray(this.value.getIntValueList());
+		}
+
+		try {
+			return decodeIntValues();
+		} catch(IOException ioe){
+			throw Throwables.propagate(ioe);
+		}
+	}
+
+	/**
+	 * Decodes the <code>realValue</code> field directly into an array, without materializing this message.
+	 */
+	synchronized
+	public double[] getRealValues(){
+
+		if(this.value != null){
+			return Doubles.toArray(this.value.getRealValueList());
+		}
+
+		try {
+			return decodeRealValues();
+		} catch(IOException ioe){
+			throw Throwables.propagate(ioe);
+		}
+	}
+
+	private void ensureScanned(){
+
+		if(this.rexpValues != null){
+			return;
+		}
+
+		this.rexpValues = new ArrayList<LazyREXP>();
+		this.attrNames = new ArrayList<String>();
+		this.attrValues = new ArrayList<LazyREXP>();
+
+		if(this.value != null){
+			scan(this.value);
+		} else
+
+		{
+			try {
+				scan();
+			} catch(IOException ioe){
+				throw Throwables.propagate(ioe);
+			}
+		}
+
+		this.attrIndex = index(this.attrNames);
+	}
+
+	private void ensureIndexed(){
+
+		if(this.fieldIndex != null){
+			return;
+		}
+
+		Optional<LazyREXP> names = getAttribute("names");
+
+		if(names.isPresent()){
+			Rexp.REXP value = (names.get()).getValue();
+
+			List<String> fieldNames = new ArrayList<String>(value.getStringValueCount());
+
+			for(int i = 0; i < value.getStringValueCount(); i++){
+				Rexp.STRING nameValue = value.getStringValue(i);
+
+				fieldNames.add(nameValue.getStrval());
+			}
+
+			this.fieldNames = Collections.unmodifiableList(fieldNames);
+		} else
+
+		{
+			this.fieldNames = Collections.emptyList();
+		}
+
+		this.fieldIndex = index(this.fieldNames);
+	}
+
+	private void scan(Rexp.REXP value){
+		this.rclass = value.getRclass();
+
+		for(Rexp.REXP rexpValue : value.getRexpValueList()){
+			this.rexpValues.add(new LazyREXP(rexpValue));
+		}
+
+		this.attrNames.addAll(value.getAttrNameList());
+
+		for(Rexp.REXP attrValue : value.getAttrValueList()){
+			this.attrValues.add(new LazyREXP(attrValue));
+		}
+	}
+
+	private void scan() throws IOException {
+		long end = (this.position + this.length);
+
+		// The absolute position of the first byte of the current input
+		long base = this.position;
+
+		CodedInputStream input = this.source.newCodedInputStream(base, end - base);
+
+		while(true){
+			int tag = input.readTag();
+			if(tag == 0){
+				break;
+			}
+
+			int fieldNumber = WireFormat.getTagFieldNumber(tag);
+
+			switch(fieldNumber){
+				case Rexp.REXP.RCLASS_FIELD_NUMBER:
+					this.rclass = Rexp.REXP.RClass.valueOf(input.readEnum());
+					continue;
+				case Rexp.REXP.ATTRNAME_FIELD_NUMBER:
+					this.attrNames.add(input.readString());
+					continue;
+				default:
+					break;
+			}
+
+			int wireType = (tag & LazyREXP.TAG_TYPE_MASK);
+			if(wireType != WireFormat.WIRETYPE_LENGTH_DELIMITED){
+				input.skipField(tag);
+
+				continue;
+			}
+
+			int size = input.readRawVarint32();
+
+			long valuePosition = (base + input.getTotalBytesRead());
+
+			switch(fieldNumber){
+				case Rexp.REXP.REXPVALUE_FIELD_NUMBER:
+					this.rexpValues.add(new LazyREXP(this.source, valuePosition, size));
+					break;
+				case Rexp.REXP.ATTRVALUE_FIELD_NUMBER:
+					this.attrValues.add(new LazyREXP(this.source, valuePosition, size));
+					break;
+				default:
+					break;
+			}
+
+			// Small values are skipped within the current buffer. Large values are skipped by opening a new input past them, because skipping would read them through
+			if(size <= LazyREXP.SKIP_LIMIT){
+				input.skipRawBytes(size);
+			} else
+
+			{
+				base = (valuePosition + size);
+
+				input = this.source.newCodedInputStream(base, end - base);
+			}
+		}
+	}
+
+	private int[] decodeIntValues() throws IOException {
+		int[] result = new int[16];
+
+		int count = 0;
+
+		CodedInputStream input = this.source.newCodedInputStream(this.position, this.length);
+
+		while(true){
+			int tag = input.readTag();
+			if(tag == 0){
+				break;
+			} // End if
+
+			if(WireFormat.getTagFieldNumber(tag) != Rexp.REXP.INTVALUE_FIELD_NUMBER){
+				input.skipField(tag);
+
+				continue;
+			}
+
+			int wireType = (tag & LazyREXP.TAG_TYPE_MASK);
+
+			// Packed encoding
+			if(wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED){
+				int size = input.readRawVarint32();
+
+				int limit = input.pushLimit(size);
+
+				// Every element takes at least one byte
+				result = Ints.ensureCapacity(result, count + size, 0);
+
+				while(input.getBytesUntilLimit() > 0){
+					result[count++] = input.readSInt32();
+				}
+
+				input.popLimit(limit);
+			} else
+
+			{
+				result = Ints.ensureCapacity(result, count + 1, count);
+
+				result[count++] = input.readSInt32();
+			}
+		}
+
+		return Arrays.copyOf(result, count);
+	}
+
+	private double[] decodeRealValues() throws IOException {
+		double[] result = new double[16];
+
+		int count = 0;
+
+		CodedInputStream input = this.source.newCodedInputStream(this.position, this.length);
+
+		while(true){
+			int tag = input.readTag();
+			if(tag == 0){
+				break;
+			} // End if
+
+			if(WireFormat.getTagFieldNumber(tag) != Rexp.REXP.REALVALUE_FIELD_NUMBER){
+				input.skipField(tag);
+
+				continue;
+			}
+
+			int wireType = (tag & LazyREXP.TAG_TYPE_MASK);
+
+			// Packed encoding
+			if(wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED){
+				int size = input.readRawVarint32();
+
+				result = Doubles.ensureCapacity(result, count + (size / 8), 0);
+
+				for(int i = 0; i < (size / 8); i++){
+					result[count++] = input.readDouble();
+				}
+			} else
+
+			{
+				result = Doubles.ensureCapacity(result, count + 1, count);
+
+				result[count++] = input.readDouble();
+			}
+		}
+
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * @return A map from names to the indices of their first occurrences.
+	 */
+	static
+	private Map<String, Integer> index(List<String> names){
+		Map<String, Integer> result = new HashMap<String, Integer>(2 * names.size());
+
+		for(int i = names.size() - 1; i > -1; i--){
+			result.put(names.get(i), i);
+		}
+
+		return result;
+	}
+
+	static
+	public LazyREXP parse(ProtoBufSource source){
+		return new LazyREXP(source, 0, source.size());
+	}
+
+	static
+	public LazyREXP wrap(Rexp.REXP value){
+		return new LazyREXP(value);
+	}
+
+	private static final int TAG_TYPE_MASK = 7;
+
+	private static final int SKIP_LIMIT = 4096;
+}
@@ -3,21 +3,32 @@
  */
 package org.jpmml.export;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.transform.stream.StreamResult;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
-import com.google.protobuf.CodedInputStream;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Range;
 import org.dmg.pmml.PMML;
 import org.jpmml.model.JAXBUtil;
-import rexp.Rexp;
 
 public class Main {
 
@@ -35,6 +46,90 @@ public class Main {
 	)
 	private File output = null;
 
+	@Parameter (
+		names = "--single-document",
+		description = "Convert a list of models into one PMML document. By default, every model is written to a separate PMML file, which is named after the PMML output file and the model"
+	)
+	private boolean singleDocument = false;
+
+	@Parameter (
+		names = "--mmap",
+		description = "Memory-map the ProtoBuf input file"
+	)
+	private boolean mmap = false;
+
+	@Parameter (
+		names = "--stream",
+		description = "Write the PMML document incrementally, without holding all of it in memory"
+	)
+	private boolean stream = false;
+
+	@Parameter (
+		names = "--spill",
+		description = "Write Segment elements to a temporary file, and copy them into the PMML document after all trees have been encoded. Implies \"--stream\""
+	)
+	private boolean spill = false;
+
+	@Parameter (
+		names = "--gzip",
+		description = "Compress the PMML output file. Implied by the \".gz\" file name suffix"
+	)
+	private boolean gzip = false;
+
+	@Parameter (
+		names = "--deduplicate",
+		description = "Encode identical trees once, and weight them by the number of their occurrences"
+	)
+	private boolean deduplicate = false;
+
+	@Parameter (
+		names = "--prune",
+		description = "Collapse subtrees whose leaf nodes all predict the same class. Applies to classification forests"
+	)
+	private boolean prune = false;
+
+	@Parameter (
+		names = "--tree-range",
+		description = "The 1-based numbers of trees to convert, as \"first:last\". Either bound may be omitted"
+	)
+	private String treeRange = null;
+
+	@Parameter (
+		names = "--compact",
+		description = "Leave out node identifiers, and round split thresholds to single precision unless specified otherwise"
+	)
+	private boolean compact = false;
+
+	@Parameter (
+		names = "--threshold-precision",
+		description = "The precision of split thresholds, either \"float\" or the number of significant digits. Thresholds are rounded up, and never past the next threshold of the same field"
+	)
+	private String thresholdPrecision = null;
+
+	@Parameter (
+		names = "--threads",
+		description = "The number of threads for encoding trees and compressing output in parallel"
+	)
+	private int threads = 1;
+
+	@Parameter (
+		names = "--progress",
+		description = "Print the progress of tree encoding, together with the estimated remaining time, throughput and heap usage"
+	)
+	private boolean progress = false;
+
+	@Parameter (
+		names = "--timeout",
+		description = "The number of seconds after which the conversion is cancelled"
+	)
+	private Integer timeout = null;
+
+	@Parameter (
+		names = "--metrics-output",
+		description = "JSON file for performance metrics"
+	)
+	private File metricsOutput = null;
+
 
 	static
 	public void main(String... args) throws Exception {
@@ -55,58 +150,428 @@ public class Main {
 	}
 
 	public void run() throws Exception {
-		Rexp.REXP rexp;
+		ExecutorService executorService = null;
 
-		InputStream is = new FileInputStream(this.input);
+		if(this.threads > 1){
+			executorService = Executors.newFixedThreadPool(this.threads);
+		}
+
+		try {
+			run(executorService);
+		} finally {
+
+			if(executorService != null){
+				executorService.shutdownNow();
+			}
+		}
+	}
+
+	private void run(ExecutorService executorService) throws Exception {
+		Metrics metrics = new Metrics();
+
+		Long deadline = null;
+
+		if(this.timeout != null){
+			deadline = System.currentTimeMillis() + (this.timeout * 1000L);
+		}
+
+		ProtoBufSource source = (this.mmap ? new MappedFileSource(this.input) : new FileSource(this.input));
 
 		try {
 			System.out.println("Parsing..");
 
-			CodedInputStream cis = CodedInputStream.newInstance(is);
-			cis.setSizeLimit(Integer.MAX_VALUE);
+			Metrics.Timer timer = metrics.startTimer("parse");
 
-			long start = System.currentTimeMillis();
-			rexp = Rexp.REXP.parseFrom(cis);
-			long end = System.currentTimeMillis();
+			LazyREXP rexp = LazyREXP.parse(source);
 
-			System.out.println("Parsed ProtoBuf in " + (end - start) + " ms.");
+			// Index the top-level message. All other messages are decoded as the converter requests them
+			rexp.getRclass();
+
+			System.out.println("Parsed ProtoBuf in " + toMillis(timer.stop()) + " ms.");
+
+			if(ModelListConverter.isModelList(rexp) && !this.singleDocument){
+				convertModels(rexp, executorService, metrics, deadline);
+			} else
+
+			{
+				convert(rexp, executorService, metrics, deadline);
+			}
 		} finally {
-			is.close();
+			source.close();
+		}
+
+		if(this.metricsOutput != null){
+			Writer writer = new OutputStreamWriter(new FileOutputStream(this.metricsOutput), "UTF-8");
+
+			try {
+				metrics.writeJSON(writer);
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private void convert(LazyREXP rexp, ExecutorService executorService, Metrics metrics, Long deadline) throws Exception {
+		Function<Converter, Converter> configurer = new Function<Converter, Converter>(){
+
+			@Override
+			public Converter apply(Converter converter){
+				return configure(converter);
+			}
+		};
+
+		Converter converter = createConverter(rexp, executorService, configurer);
+		converter.setMetrics(metrics);
+		converter.setDeadline(deadline);
+
+		if(this.progress){
+			converter.setListener(new ProgressPrinter(null));
 		}
 
-		PMML pmml = convert(rexp);
+		Metrics.Timer timer;
 
-		OutputStream os = new FileOutputStream(this.output);
+		OutputStream os = createOutputStream(this.output, executorService);
 
 		try {
-			System.out.println("Marshalling..");
 
-			long start = System.currentTimeMillis();
-			JAXBUtil.marshalPMML(pmml, new StreamResult(os));
-			long end = System.currentTimeMillis();
+			if(this.stream || this.spill){
+				System.out.println("Converting and marshalling..");
 
-			System.out.println("Marshalled PMML in " + (end - start) + " ms.");
+				timer = metrics.startTimer("convertAndMarshal");
+
+				converter.convert(rexp, os);
+
+				System.out.println("Converted and marshalled PMML in " + toMillis(timer.stop()) + " ms.");
+			} else
+
+			{
+				System.out.println("Converting..");
+
+				timer = metrics.startTimer("convert");
+
+				PMML pmml = converter.convert(rexp);
+
+				System.out.println("Converted PMML in " + toMillis(timer.stop()) + " ms.");
+
+				System.out.println("Marshalling..");
+
+				timer = metrics.startTimer("marshal");
+
+				JAXBUtil.marshalPMML(pmml, new StreamResult(os));
+
+				System.out.println("Marshalled PMML in " + toMillis(timer.stop()) + " ms.");
+			}
 		} finally {
 			os.close();
 		}
+
+		long outputBytes = (this.output).length();
+
+		metrics.setValue("outputBytes", outputBytes);
+
+		if(converter instanceof RandomForestConverter){
+			RandomForestConverter randomForestConverter = (RandomForestConverter)converter;
+
+			if(this.deduplicate){
+				System.out.println("Left out " + randomForestConverter.getDuplicateTrees() + " duplicate trees.");
+			} // End if
+
+			if(this.prune){
+				System.out.println("Pruned " + randomForestConverter.getPrunedNodes() + " nodes.");
+			} // End if
+
+			if(this.compact || this.thresholdPrecision != null){
+				long savedBytes = randomForestConverter.getSavedBytes();
+
+				// The size of the uncompressed output without the compact encoding
+				long fullBytes = (outputBytes + savedBytes);
+				if(this.gzip || ((this.output).getName()).endsWith(".gz")){
+					fullBytes = -1;
+				}
+
+				System.out.println("Compact encoding saved " + savedBytes + " bytes" + (fullBytes > 0 ? " (" + (100L * savedBytes / fullBytes) + "%)" : "") + ".");
+			}
+		}
 	}
 
-	private PMML convert(Rexp.REXP rexp){
-		Converter converter;
+	/**
+	 * Converts every model of the list, and writes it to a separate PMML file.
+	 * Models are converted in parallel, so the trees of a single model are not.
+	 */
+	private void convertModels(LazyREXP list, ExecutorService executorService, final Metrics metrics, final Long deadline) throws Exception {
+		List<String> names = ModelListConverter.getNames(list);
+		List<LazyREXP> elements = ModelListConverter.getElements(list);
+
+		System.out.println("Converting " + elements.size() + " models..");
+
+		Metrics.Timer timer = metrics.startTimer("convertModels");
+
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+
+		for(int i = 0; i < elements.size(); i++){
+			final
+			String name = names.get(i);
+
+			final
+			LazyREXP element = elements.get(i);
+
+			final
+			File output = getOutput(this.output, name);
+
+			Callable<Long> callable = new Callable<Long>(){
+
+				@Override
+				public Long call() throws Exception {
+					Converter converter = configure(createModelConverter(element, null));
+					converter.setMetrics(metrics);
+					converter.setDeadline(deadline);
+
+					if(getProgress()){
+						converter.setListener(new ProgressPrinter(name));
+					}
+
+					long start = System.currentTimeMillis();
+
+					OutputStream os = createOutputStream(output, null);
+
+					try {
+
+						if(getStream() || getSpill()){
+							converter.convert(element, os);
+						} else
+
+						{
+							PMML pmml = converter.convert(element);
+
+							JAXBUtil.marshalPMML(pmml, new StreamResult(os));
+						}
+					} finally {
+						os.close();
+					}
+
+					long end = System.currentTimeMillis();
+
+					return (end - start);
+				}
+			};
+
+			FutureTask<Long> future = new FutureTask<Long>(callable);
+
+			if(executorService != null){
+				executorService.execute(future);
+			} else
+
+			{
+				future.run();
+			}
+
+			futures.add(future);
+		}
+
+		int failures = 0;
+
+		long outputBytes = 0;
+
+		for(int i = 0; i < futures.size(); i++){
+			Future<Long> future = futures.get(i);
+
+			File output = getOutput(this.output, names.get(i));
+
+			try {
+				long time = future.get();
+
+				System.out.println("Converted model " + names.get(i) + " to " + output + " in " + time + " ms.");
+
+				outputBytes += output.length();
+			} catch(ExecutionException ee){
+				System.out.println("FAILED model " + names.get(i) + ": " + ee.getCause());
+
+				failures++;
+			}
+		}
+
+		System.out.println("Converted " + (futures.size() - failures) + " of " + futures.size() + " models in " + toMillis(timer.stop()) + " ms.");
+
+		metrics.setValue("outputBytes", outputBytes);
+
+		if(failures > 0){
+			throw new IllegalArgumentException(failures + " of " + futures.size() + " models could not be converted");
+		}
+	}
+
+	private OutputStream createOutputStream(File output, ExecutorService executorService) throws IOException {
+
+		if(this.gzip || (output.getName()).endsWith(".gz")){
+			return new ParallelGZIPOutputStream(new FileOutputStream(output), executorService);
+		} else
+
+		if(this.spill){
+			// The PMML stream writer copies the temporary file to the file channel directly
+			return new FileOutputStream(output);
+		}
+
+		return new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+	}
+
+	private Converter configure(Converter converter){
+		return configure(converter, this.deduplicate, this.prune, this.treeRange, this.spill, this.compact, this.thresholdPrecision);
+	}
+
+	/**
+	 * Applies the command-line options of random forest conversion. Other converters are returned unchanged.
+	 */
+	static
+	Converter configure(Converter converter, boolean deduplicate, boolean prune, String treeRange, boolean spill, boolean compact, String thresholdPrecision){
+
+		if(converter instanceof RandomForestConverter){
+			RandomForestConverter randomForestConverter = (RandomForestConverter)converter;
+
+			randomForestConverter.setDeduplicate(deduplicate);
+			randomForestConverter.setPrune(prune);
+
+			if(treeRange != null){
+				randomForestConverter.setTreeRange(parseTreeRange(treeRange));
+			}
+
+			randomForestConverter.setSpill(spill);
+			randomForestConverter.setNodeIds(!compact);
+
+			if(thresholdPrecision != null){
+				randomForestConverter.setThresholdPrecision(parseThresholdPrecision(thresholdPrecision));
+			} else
+
+			if(compact){
+				randomForestConverter.setThresholdPrecision(RandomForestConverter.PRECISION_FLOAT);
+			}
+		}
+
+		return converter;
+	}
+
+	/**
+	 * @param executorService An executor for encoding trees in parallel, or <code>null</code>.
+	 */
+	static
+	Converter createConverter(LazyREXP rexp, ExecutorService executorService){
+		return createConverter(rexp, executorService, Functions.<Converter>identity());
+	}
+
+	/**
+	 * @param executorService An executor for encoding trees in parallel, or <code>null</code>.
+	 * @param configurer A function for configuring the converter. In the case of a list, it is applied to the converters of list elements as well.
+	 */
+	static
+	Converter createConverter(LazyREXP rexp, ExecutorService executorService, final Function<Converter, Converter> configurer){
+
+		if(ModelListConverter.isModelList(rexp)){
+			ModelListConverter converter = new ModelListConverter(){
+
+				@Override
+				protected Converter createConverter(LazyREXP element){
+					return configurer.apply(super.createConverter(element));
+				}
+			};
+			converter.setExecutorService(executorService);
+
+			return configurer.apply(converter);
+		}
+
+		return configurer.apply(createModelConverter(rexp, executorService));
+	}
+
+	/**
+	 * @param executorService An executor for encoding trees in parallel, or <code>null</code>.
+	 */
+	static
+	Converter createModelConverter(LazyREXP rexp, ExecutorService executorService){
 
 		if(REXPUtil.inherits(rexp, "kmeans")){
-			converter = new KMeansConverter();
+			return new KMeansConverter();
 		} else
 
 		if(REXPUtil.inherits(rexp, "randomForest")){
-			converter = new RandomForestConverter();
-		} else
+			RandomForestConverter converter = new RandomForestConverter();
+			converter.setExecutorService(executorService);
 
-		{
-			throw new IllegalArgumentException();
+			return converter;
 		}
 
-		return converter.convert(rexp);
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * @param string A range of integers, as "first:last".
+	 */
+	static
+	Range<Integer> parseTreeRange(String string){
+		int colon = string.indexOf(':');
+		if(colon < 0){
+			throw new IllegalArgumentException(string);
+		}
+
+		String first = (string.substring(0, colon)).trim();
+		String last = (string.substring(colon + 1)).trim();
+
+		Range<Integer> result = Range.all();
+
+		if(first.length() > 0){
+			result = result.intersection(Range.atLeast(Integer.valueOf(first)));
+		} // End if
+
+		if(last.length() > 0){
+			result = result.intersection(Range.atMost(Integer.valueOf(last)));
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return The PMML output file of a model, which is named after the PMML output file of the list and the model.
+	 */
+	static
+	File getOutput(File output, String name){
+		String fileName = output.getName();
+
+		String suffix = "";
+
+		for(String extension : new String[]{".pmml.gz", ".pmml", ".gz"}){
+
+			if(fileName.endsWith(extension)){
+				suffix = extension;
+
+				break;
+			}
+		}
+
+		String prefix = fileName.substring(0, fileName.length() - suffix.length());
+
+		// Characters that are not safe in file names
+		String safeName = name.replaceAll("[^A-Za-z0-9._\\-]", "_");
+
+		return new File((output.getAbsoluteFile()).getParentFile(), prefix + "-" + safeName + suffix);
+	}
+
+	/**
+	 * @param string Either "float" or the number of significant digits.
+	 */
+	static
+	int parseThresholdPrecision(String string){
+
+		if(("float").equals(string)){
+			return RandomForestConverter.PRECISION_FLOAT;
+		}
+
+		int digits = Integer.parseInt(string);
+		if(digits < 1){
+			throw new IllegalArgumentException(string);
+		}
+
+		return digits;
+	}
+
+	static
+	private long toMillis(long nanos){
+		return (nanos / 1000000L);
 	}
 
 	public File getInput(){
@@ -122,6 +587,118 @@ public class Main {
 		this.input = input;
 	}
 
+	public boolean getSingleDocument(){
+		return this.singleDocument;
+	}
+
+	public void setSingleDocument(boolean singleDocument){
+		this.singleDocument = singleDocument;
+	}
+
+	public boolean getMmap(){
+		return this.mmap;
+	}
+
+	public void setMmap(boolean mmap){
+		this.mmap = mmap;
+	}
+
+	public boolean getStream(){
+		return this.stream;
+	}
+
+	public void setStream(boolean stream){
+		this.stream = stream;
+	}
+
+	public boolean getSpill(){
+		return this.spill;
+	}
+
+	public void setSpill(boolean spill){
+		this.spill = spill;
+	}
+
+	public boolean getGzip(){
+		return this.gzip;
+	}
+
+	public void setGzip(boolean gzip){
+		this.gzip = gzip;
+	}
+
+	public boolean getDeduplicate(){
+		return this.deduplicate;
+	}
+
+	public void setDeduplicate(boolean deduplicate){
+		this.deduplicate = deduplicate;
+	}
+
+	public boolean getPrune(){
+		return this.prune;
+	}
+
+	public void setPrune(boolean prune){
+		this.prune = prune;
+	}
+
+	public String getTreeRange(){
+		return this.treeRange;
+	}
+
+	public void setTreeRange(String treeRange){
+		this.treeRange = treeRange;
+	}
+
+	public boolean getCompact(){
+		return this.compact;
+	}
+
+	public void setCompact(boolean compact){
+		this.compact = compact;
+	}
+
+	public String getThresholdPrecision(){
+		return this.thresholdPrecision;
+	}
+
+	public void setThresholdPrecision(String thresholdPrecision){
+		this.thresholdPrecision = thresholdPrecision;
+	}
+
+	public int getThreads(){
+		return this.threads;
+	}
+
+	public void setThreads(int threads){
+		this.threads = threads;
+	}
+
+	public boolean getProgress(){
+		return this.progress;
+	}
+
+	public void setProgress(boolean progress){
+		this.progress = progress;
+	}
+
+	public Integer getTimeout(){
+		return this.timeout;
+	}
+
+	public void setTimeout(Integer timeout){
+		this.timeout = timeout;
+	}
+
+	public File getMetricsOutput(){
+		return this.metricsOutput;
+	}
+
+	public void setMetricsOutput(File metricsOutput){
+		this.metricsOutput = metricsOutput;
+	}
+
 	public File getOutput(){
 		return this.output;
 	}
@@ -134,4 +711,51 @@ public class Main {
 
 		this.output = output;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Prints the progress of tree encoding at most once per second, and after the last tree.
+	 */
+	static
+	private class ProgressPrinter implements ConverterListener {
+
+		private String name = null;
+
+		private long lastTime = 0;
+
+
+		private ProgressPrinter(String name){
+			this.name = name;
+		}
+
+		@Override
+		synchronized
+		public void progressChanged(Converter converter, Converter.Progress progress){
+			long time = System.nanoTime();
+
+			int completedTrees = progress.getCompletedTrees();
+			int totalTrees = progress.getTotalTrees();
+
+			if((time - this.lastTime) < 1000000000L && completedTrees < totalTrees){
+				return;
+			}
+
+			this.lastTime = time;
+
+			StringBuilder sb = new StringBuilder();
+
+			if(this.name != null){
+				sb.append("Model ").append(this.name).append(": ");
+			}
+
+			sb.append("Encoded ").append(completedTrees).append(" of ").append(totalTrees).append(" trees");
+			sb.append(" (").append(totalTrees > 0 ? (100L * completedTrees / totalTrees) : 100L).append("%)");
+			sb.append(" at ").append((long)progress.getNodesPerSecond()).append(" nodes/s.");
+			sb.append(" Remaining ").append(toMillis(progress.getRemainingTime())).append(" ms.");
+			sb.append(" Heap ").append(progress.getUsedMemory() / MEGABYTE).append(" of ").append(progress.getMaxMemory() / MEGABYTE).append(" MB.");
+
+			System.out.println(sb.toString());
+		}
+	}
+
+	private static final long MEGABYTE = 1024L * 1024L;
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * A ProtoBuf source that reads bytes from a memory-mapped file.
+ *
+ * A single {@link MappedByteBuffer} cannot address more than 2 GB, so larger files are mapped as a sequence of consecutive regions.
+ * A {@link CodedInputStream} moves over region boundaries transparently.
+ */
+public class MappedFileSource extends ProtoBufSource {
+
+	private RandomAccessFile file = null;
+
+	private MappedByteBuffer[] regions = null;
+
+	private int regionSize = 0;
+
+	private long size = 0;
+
+
+	public MappedFileSource(File file) throws IOException {
+		this(file, MappedFileSource.REGION_SIZE);
+	}
+
+	public MappedFileSource(File file, int regionSize) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+
+		FileChannel channel = this.file.getChannel();
+
+		this.regionSize = regionSize;
+		this.size = channel.size();
+
+		int count = (int)((this.size + (regionSize - 1)) / regionSize);
+
+		this.regions = new MappedByteBuffer[count];
+
+		for(int i = 0; i < count; i++){
+			long position = ((long)i * regionSize);
+
+			this.regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, this.size - position));
+		}
+	}
+
+	@Override
+	public long size(){
+		return this.size;
+	}
+
+	@Override
+	public CodedInputStream newCodedInputStream(long position, long length){
+		return newCodedInputStream(new RegionInputStream(position, length));
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The mappings remain valid until they are garbage collected
+		this.regions = null;
+
+		this.file.close();
+	}
+
+	private class RegionInputStream extends InputStream {
+
+		private long position = 0;
+
+		private long end = 0;
+
+
+		private RegionInputStream(long position, long length){
+			this.position = position;
+			this.end = position + length;
+		}
+
+		@Override
+		public int read(){
+
+			if(this.position >= this.end){
+				return -1;
+			}
+
+			ByteBuffer region = getRegion(this.position);
+
+			int result = (region.get(getOffset(this.position)) & 0xff);
+
+			this.position++;
+
+			return result;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length){
+			long remaining = (this.end - this.position);
+
+			if(remaining <= 0){
+				return -1;
+			}
+
+			ByteBuffer region = (getRegion(this.position)).duplicate();
+			region.position(getOffset(this.position));
+
+			// Reads stop at the region boundary. The caller will come back for the rest
+			int count = (int)Math.min(Math.min(length, remaining), region.remaining());
+
+			region.get(buffer, offset, count);
+
+			this.position += count;
+
+			return count;
+		}
+
+		@Override
+		public long skip(long n){
+			long count = Math.max(0, Math.min(n, this.end - this.position));
+
+			this.position += count;
+
+			return count;
+		}
+
+		@Override
+		public int available(){
+			return (int)Math.min(this.end - this.position, Integer.MAX_VALUE);
+		}
+
+		private ByteBuffer getRegion(long position){
+			MappedByteBuffer[] regions = MappedFileSource.this.regions;
+
+			return regions[(int)(position / MappedFileSource.this.regionSize)];
+		}
+
+		private int getOffset(long position){
+			return (int)(position % MappedFileSource.this.regionSize);
+		}
+	}
+
+	private static final int REGION_SIZE = (1 << 30);
+}
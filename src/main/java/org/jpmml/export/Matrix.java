@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+/**
+ * A strided view over the elements of a matrix.
+ */
+abstract
+public class Matrix {
+
+	private int offset = 0;
+
+	private int rows = 0;
+
+	private int columns = 0;
+
+	private int rowStride = 0;
+
+	private int columnStride = 0;
+
+
+	protected Matrix(int offset, int rows, int columns, int rowStride, int columnStride){
+		this.offset = offset;
+		this.rows = rows;
+		this.columns = columns;
+		this.rowStride = rowStride;
+		this.columnStride = columnStride;
+	}
+
+	public int size(){
+		return (this.rows * this.columns);
+	}
+
+	public int getRows(){
+		return this.rows;
+	}
+
+	public int getColumns(){
+		return this.columns;
+	}
+
+	protected int getIndex(int row, int column){
+
+		if((row < 0 || row >= this.rows) || (column < 0 || column >= this.columns)){
+			throw new IndexOutOfBoundsException();
+		}
+
+		return this.offset + (row * this.rowStride) + (column * this.columnStride);
+	}
+
+	protected int getIndex(int index){
+		return getIndex(index % this.rows, index / this.rows);
+	}
+
+	protected int getRowStride(){
+		return this.rowStride;
+	}
+
+	protected int getColumnStride(){
+		return this.columnStride;
+	}
+}
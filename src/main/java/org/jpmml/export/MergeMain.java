@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import org.dmg.pmml.DataDictionary;
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.DataType;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.FieldUsageType;
+import org.dmg.pmml.Header;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.MiningFunctionType;
+import org.dmg.pmml.MiningSchema;
+import org.dmg.pmml.MultipleModelMethodType;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.Value;
+import org.jpmml.model.JAXBUtil;
+
+/**
+ * Combines the PMML files of disjoint tree ranges (see the <code>--tree-range</code> option of {@link Main}) into a complete Random Forest model.
+ *
+ * The input files are read twice. The first pass reads the elements that precede Segment elements, and builds the shared DataDictionary and MiningSchema elements.
+ * The second pass copies Segment elements one by one, so memory usage depends on the size of the largest tree rather than on the number of trees.
+ *
+ * A continuous field may be binary (ie. split only at 0.5) in some tree ranges, and be encoded as a boolean field there.
+ * If the same field is not binary in other tree ranges, then it becomes a continuous field, and its boolean split predicates are rewritten as equivalent comparisons with 0.5.
+ */
+public class MergeMain {
+
+	@Parameter (
+		names = "--pmml-input",
+		description = "PMML input files, in tree order",
+		required = true,
+		variableArity = true
+	)
+	private List<File> inputs = null;
+
+	@Parameter (
+		names = "--pmml-output",
+		description = "PMML output file",
+		required = true
+	)
+	private File output = null;
+
+	@Parameter (
+		names = "--gzip",
+		description = "Compress the PMML output file. Implied by the \".gz\" file name suffix"
+	)
+	private boolean gzip = false;
+
+
+	static
+	public void main(String... args) throws Exception {
+		MergeMain main = new MergeMain();
+
+		JCommander commander = new JCommander(main);
+		commander.setProgramName(MergeMain.class.getName());
+
+		try {
+			commander.parse(args);
+		} catch(ParameterException pe){
+			commander.usage();
+
+			System.exit(-1);
+		}
+
+		main.run();
+	}
+
+	public void run() throws Exception {
+		List<Prologue> prologues = new ArrayList<Prologue>();
+
+		for(File input : this.inputs){
+			prologues.add(readPrologue(input));
+		}
+
+		Prologue first = prologues.get(0);
+
+		FieldName targetField = first.getTargetField();
+
+		MiningFunctionType miningFunction = first.getMiningFunction();
+
+		Set<MultipleModelMethodType> multipleModelMethods = EnumSet.noneOf(MultipleModelMethodType.class);
+
+		Map<FieldName, DataField> dataFields = new LinkedHashMap<FieldName, DataField>();
+
+		for(Prologue prologue : prologues){
+
+			if(!(targetField).equals(prologue.getTargetField()) || !(miningFunction).equals(prologue.getMiningFunction())){
+				throw new IllegalArgumentException("File " + prologue.getFile() + " is not a part of the same model");
+			}
+
+			multipleModelMethods.add(prologue.getMultipleModelMethod());
+
+			for(DataField dataField : (prologue.getDataDictionary()).getDataFields()){
+				dataFields.put(dataField.getName(), mergeDataField(dataFields.get(dataField.getName()), dataField));
+			}
+		}
+
+		MultipleModelMethodType multipleModelMethod = mergeMultipleModelMethods(multipleModelMethods);
+
+		DataField targetDataField = dataFields.remove(targetField);
+
+		List<DataField> activeDataFields = new ArrayList<DataField>(dataFields.values());
+
+		// The same order as in the output of the converter
+		Comparator<DataField> comparator = new Comparator<DataField>(){
+
+			@Override
+			public int compare(DataField left, DataField right){
+				return ((left.getName()).getValue()).compareTo((right.getName()).getValue());
+			}
+		};
+		Collections.sort(activeDataFields, comparator);
+
+		DataDictionary dataDictionary = new DataDictionary()
+			.withDataFields(targetDataField)
+			.withDataFields(activeDataFields);
+
+		MiningSchema miningSchema = new MiningSchema()
+			.withMiningFields(new MiningField(targetField).withUsageType(FieldUsageType.TARGET));
+
+		for(DataField activeDataField : activeDataFields){
+			miningSchema = miningSchema.withMiningFields(new MiningField(activeDataField.getName()));
+		}
+
+		OutputStream os;
+
+		if(this.gzip || ((this.output).getName()).endsWith(".gz")){
+			os = new ParallelGZIPOutputStream(new FileOutputStream(this.output), null);
+		} else
+
+		{
+			os = new BufferedOutputStream(new FileOutputStream(this.output), 64 * 1024);
+		}
+
+		int segments = 0;
+
+		try {
+			PMMLStreamWriter writer = new PMMLStreamWriter(os);
+
+			writer.writeStartDocument();
+			writer.writeElement(first.getHeader());
+			writer.writeElement(dataDictionary);
+
+			writer.writeStartElement("MiningModel");
+			writer.writeAttribute("functionName", miningFunction.value());
+			writer.writeElement(miningSchema);
+
+			writer.writeStartElement("Segmentation");
+			writer.writeAttribute("multipleModelMethod", multipleModelMethod.value());
+
+			for(Prologue prologue : prologues){
+				InputStream is = open(prologue.getFile());
+
+				try {
+					XMLStreamReader reader = (XMLInputFactory.newInstance()).createXMLStreamReader(is);
+
+					Unmarshaller unmarshaller = (JAXBUtil.getContext()).createUnmarshaller();
+
+					while(reader.hasNext()){
+
+						if(!reader.isStartElement() || !("Segment").equals(reader.getLocalName())){
+							reader.next();
+
+							continue;
+						}
+
+						// The reader is left at the event that follows the end of the element
+						Segment segment = (unmarshaller.unmarshal(reader, Segment.class)).getValue();
+
+						segments++;
+
+						segment.setId(String.valueOf(segments));
+
+						writer.writeElement(segment);
+					}
+
+					reader.close();
+				} finally {
+					is.close();
+				}
+			}
+
+			writer.writeEndElement();
+			writer.writeEndElement();
+			writer.writeEndDocument();
+		} finally {
+			os.close();
+		}
+
+		System.out.println("Merged " + segments + " segments from " + prologues.size() + " files.");
+	}
+
+	private Prologue readPrologue(File file) throws Exception {
+		Prologue prologue = new Prologue(file);
+
+		InputStream is = open(file);
+
+		try {
+			XMLStreamReader reader = (XMLInputFactory.newInstance()).createXMLStreamReader(is);
+
+			Unmarshaller unmarshaller = (JAXBUtil.getContext()).createUnmarshaller();
+
+			while(reader.hasNext()){
+
+				if(!reader.isStartElement()){
+					reader.next();
+
+					continue;
+				}
+
+				String localName = reader.getLocalName();
+
+				if(("Header").equals(localName)){
+					prologue.header = (unmarshaller.unmarshal(reader, Header.class)).getValue();
+				} else
+
+				if(("DataDictionary").equals(localName)){
+					prologue.dataDictionary = (unmarshaller.unmarshal(reader, DataDictionary.class)).getValue();
+				} else
+
+				if(("MiningModel").equals(localName)){
+					prologue.miningFunction = MiningFunctionType.fromValue(reader.getAttributeValue(null, "functionName"));
+
+					reader.next();
+				} else
+
+				// The MiningSchema element of the MiningModel element precedes all Segment elements
+				if(("MiningSchema").equals(localName) && prologue.miningSchema == null){
+					prologue.miningSchema = (unmarshaller.unmarshal(reader, MiningSchema.class)).getValue();
+				} else
+
+				if(("Segmentation").equals(localName)){
+					prologue.multipleModelMethod = MultipleModelMethodType.fromValue(reader.getAttributeValue(null, "multipleModelMethod"));
+
+					break;
+				} else
+
+				{
+					reader.next();
+				}
+			}
+
+			reader.close();
+		} finally {
+			is.close();
+		}
+
+		if(prologue.header == null || prologue.dataDictionary == null || prologue.miningFunction == null || prologue.miningSchema == null || prologue.multipleModelMethod == null){
+			throw new IllegalArgumentException("File " + file + " does not contain a MiningModel element");
+		}
+
+		return prologue;
+	}
+
+	public List<File> getInputs(){
+		return this.inputs;
+	}
+
+	public void setInputs(List<File> inputs){
+		this.inputs = inputs;
+	}
+
+	public File getOutput(){
+		return this.output;
+	}
+
+	public void setOutput(File output){
+
+		if(output == null){
+			throw new NullPointerException();
+		}
+
+		this.output = output;
+	}
+
+	public boolean getGzip(){
+		return this.gzip;
+	}
+
+	public void setGzip(boolean gzip){
+		this.gzip = gzip;
+	}
+
+	static
+	private InputStream open(File file) throws Exception {
+		InputStream is = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+
+		if((file.getName()).endsWith(".gz")){
+			is = new GZIPInputStream(is, 64 * 1024);
+		}
+
+		return is;
+	}
+
+	static
+	DataField mergeDataField(DataField left, DataField right){
+
+		if(left == null){
+			return right;
+		}
+
+		DataType leftDataType = left.getDataType();
+		DataType rightDataType = right.getDataType();
+
+		if((leftDataType).equals(rightDataType) && (left.getOptype()).equals(right.getOptype()) && (getValues(left)).equals(getValues(right))){
+			return left;
+		} // End if
+
+		// A binary continuous field is not binary in all tree ranges
+		if(EnumSet.of(leftDataType, rightDataType).equals(EnumSet.of(DataType.BOOLEAN, DataType.DOUBLE))){
+			return ((DataType.DOUBLE).equals(leftDataType) ? left : right);
+		}
+
+		throw new IllegalArgumentException("Field " + (left.getName()).getValue() + " has conflicting definitions");
+	}
+
+	static
+	private List<String> getValues(DataField dataField){
+		List<String> result = new ArrayList<String>();
+
+		for(Value value : dataField.getValues()){
+			result.add(value.getValue());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Deduplicated forests are scored using weighted methods, in which unweighted segments have a weight of 1.
+	 */
+	static
+	private MultipleModelMethodType mergeMultipleModelMethods(Set<MultipleModelMethodType> multipleModelMethods){
+
+		if(multipleModelMethods.size() == 1){
+			return multipleModelMethods.iterator().next();
+		} else
+
+		if((multipleModelMethods).equals(EnumSet.of(MultipleModelMethodType.AVERAGE, MultipleModelMethodType.WEIGHTED_AVERAGE))){
+			return MultipleModelMethodType.WEIGHTED_AVERAGE;
+		} else
+
+		if((multipleModelMethods).equals(EnumSet.of(MultipleModelMethodType.MAJORITY_VOTE, MultipleModelMethodType.WEIGHTED_MAJORITY_VOTE))){
+			return MultipleModelMethodType.WEIGHTED_MAJORITY_VOTE;
+		}
+
+		throw new IllegalArgumentException("Conflicting multiple model methods " + multipleModelMethods);
+	}
+
+	static
+	private class Prologue {
+
+		private File file = null;
+
+		private Header header = null;
+
+		private DataDictionary dataDictionary = null;
+
+		private MiningFunctionType miningFunction = null;
+
+		private MiningSchema miningSchema = null;
+
+		private MultipleModelMethodType multipleModelMethod = null;
+
+
+		private Prologue(File file){
+			this.file = file;
+		}
+
+		public File getFile(){
+			return this.file;
+		}
+
+		public Header getHeader(){
+			return this.header;
+		}
+
+		public DataDictionary getDataDictionary(){
+			return this.dataDictionary;
+		}
+
+		public MiningFunctionType getMiningFunction(){
+			return this.miningFunction;
+		}
+
+		public MultipleModelMethodType getMultipleModelMethod(){
+			return this.multipleModelMethod;
+		}
+
+		public FieldName getTargetField(){
+
+			for(MiningField miningField : this.miningSchema.getMiningFields()){
+				FieldUsageType usageType = miningField.getUsageType();
+
+				if((FieldUsageType.TARGET).equals(usageType) || (FieldUsageType.PREDICTED).equals(usageType)){
+					return miningField.getName();
+				}
+			}
+
+			throw new IllegalArgumentException("File " + this.file + " does not specify a target field");
+		}
+	}
+}
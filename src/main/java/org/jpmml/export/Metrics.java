@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+/**
+ * Performance metrics of a conversion.
+ *
+ * A phase accumulates the wall time, CPU time and allocated bytes of all its executions.
+ * CPU time and allocated bytes are measured for the executing thread, so the executions of a phase may run on different threads.
+ * They are not reported if the JVM does not support measuring them.
+ *
+ * All methods are thread-safe.
+ */
+public class Metrics {
+
+	private Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+	private long[] treeTimes = new long[16];
+
+	private int[] treeNodes = new int[16];
+
+	private int treeCount = 0;
+
+	private Map<String, Number> values = new LinkedHashMap<String, Number>();
+
+
+	public Timer startTimer(String phase){
+		return new Timer(phase);
+	}
+
+	/**
+	 * @param time The wall time of encoding the tree, in nanoseconds.
+	 * @param nodes The number of nodes in the tree.
+	 */
+	synchronized
+	public void recordTree(long time, int nodes){
+		this.treeTimes = Longs.ensureCapacity(this.treeTimes, this.treeCount + 1, this.treeCount);
+		this.treeNodes = Ints.ensureCapacity(this.treeNodes, this.treeCount + 1, this.treeCount);
+
+		this.treeTimes[this.treeCount] = time;
+		this.treeNodes[this.treeCount] = nodes;
+
+		this.treeCount++;
+	}
+
+	synchronized
+	public void setValue(String name, Number value){
+		this.values.put(name, value);
+	}
+
+	synchronized
+	public Phase getPhase(String name){
+		return this.phases.get(name);
+	}
+
+	synchronized
+	private void addPhase(String name, long wallTime, long cpuTime, long allocatedBytes){
+		Phase phase = this.phases.get(name);
+
+		if(phase == null){
+			phase = new Phase();
+
+			this.phases.put(name, phase);
+		}
+
+		phase.calls++;
+		phase.wallTime += wallTime;
+		phase.cpuTime = (phase.cpuTime < 0 || cpuTime < 0) ? -1 : (phase.cpuTime + cpuTime);
+		phase.allocatedBytes = (phase.allocatedBytes < 0 || allocatedBytes < 0) ? -1 : (phase.allocatedBytes + allocatedBytes);
+	}
+
+	/**
+	 * Writes this report as a JSON object.
+	 */
+	synchronized
+	public void writeJSON(Writer writer) throws IOException {
+		writer.write("{\n");
+
+		writer.write("\t\"phases\": {");
+
+		String sep = "\n";
+
+		for(Map.Entry<String, Phase> entry : this.phases.entrySet()){
+			Phase phase = entry.getValue();
+
+			writer.write(sep);
+			writer.write("\t\t" + quote(entry.getKey()) + ": {");
+			writer.write("\"calls\": " + phase.calls);
+			writer.write(", \"wallMillis\": " + toMillis(phase.wallTime));
+
+			if(phase.cpuTime >= 0){
+				writer.write(", \"cpuMillis\": " + toMillis(phase.cpuTime));
+			} // End if
+
+			if(phase.allocatedBytes >= 0){
+				writer.write(", \"allocatedBytes\": " + phase.allocatedBytes);
+			}
+
+			writer.write("}");
+
+			sep = ",\n";
+		}
+
+		writer.write("\n\t},\n");
+
+		writer.write("\t\"trees\": {");
+		writer.write("\"count\": " + this.treeCount);
+
+		if(this.treeCount > 0){
+			long[] times = Arrays.copyOf(this.treeTimes, this.treeCount);
+			Arrays.sort(times);
+
+			int[] nodes = Arrays.copyOf(this.treeNodes, this.treeCount);
+			Arrays.sort(nodes);
+
+			long totalNodes = 0;
+
+			for(int i = 0; i < nodes.length; i++){
+				totalNodes += nodes[i];
+			}
+
+			writer.write(", \"encodeMillis\": {");
+			writer.write("\"p50\": " + toMillis(percentile(times, 50)));
+			writer.write(", \"p90\": " + toMillis(percentile(times, 90)));
+			writer.write(", \"p99\": " + toMillis(percentile(times, 99)));
+			writer.write(", \"max\": " + toMillis(times[times.length - 1]));
+			writer.write("}");
+
+			writer.write(", \"nodes\": {");
+			writer.write("\"total\": " + totalNodes);
+			writer.write(", \"min\": " + nodes[0]);
+			writer.write(", \"max\": " + nodes[nodes.length - 1]);
+			writer.write(", \"mean\": " + ((double)totalNodes / (double)nodes.length));
+			writer.write("}");
+		}
+
+		writer.write("},\n");
+
+		writer.write("\t\"values\": {");
+
+		sep = "\n";
+
+		for(Map.Entry<String, Number> entry : this.values.entrySet()){
+			writer.write(sep);
+			writer.write("\t\t" + quote(entry.getKey()) + ": " + formatNumber(entry.getValue()));
+
+			sep = ",\n";
+		}
+
+		writer.write("\n\t}\n");
+
+		writer.write("}\n");
+
+		writer.flush();
+	}
+
+	public class Timer {
+
+		private String phase = null;
+
+		private long wallTime = 0;
+
+		private long cpuTime = 0;
+
+		private long allocatedBytes = 0;
+
+
+		private Timer(String phase){
+			this.phase = phase;
+
+			this.wallTime = System.nanoTime();
+			this.cpuTime = getCurrentThreadCpuTime();
+			this.allocatedBytes = getCurrentThreadAllocatedBytes();
+		}
+
+		/**
+		 * @return The wall time since the start of this timer, in nanoseconds.
+		 */
+		public long stop(){
+			long wallTime = (System.nanoTime() - this.wallTime);
+
+			long cpuTime = getCurrentThreadCpuTime();
+			if(cpuTime >= 0 && this.cpuTime >= 0){
+				cpuTime -= this.cpuTime;
+			} else
+
+			{
+				cpuTime = -1;
+			}
+
+			long allocatedBytes = getCurrentThreadAllocatedBytes();
+			if(allocatedBytes >= 0 && this.allocatedBytes >= 0){
+				allocatedBytes -= this.allocatedBytes;
+			} else
+
+			{
+				allocatedBytes = -1;
+			}
+
+			addPhase(this.phase, wallTime, cpuTime, allocatedBytes);
+
+			return wallTime;
+		}
+	}
+
+	static
+	public class Phase {
+
+		private int calls = 0;
+
+		private long wallTime = 0;
+
+		private long cpuTime = 0;
+
+		private long allocatedBytes = 0;
+
+
+		private Phase(){
+		}
+
+		public int getCalls(){
+			return this.calls;
+		}
+
+		/**
+		 * @return The wall time in nanoseconds.
+		 */
+		public long getWallTime(){
+			return this.wallTime;
+		}
+
+		/**
+		 * @return The CPU time in nanoseconds, or <code>-1</code>.
+		 */
+		public long getCpuTime(){
+			return this.cpuTime;
+		}
+
+		/**
+		 * @return The number of allocated bytes, or <code>-1</code>.
+		 */
+		public long getAllocatedBytes(){
+			return this.allocatedBytes;
+		}
+	}
+
+	static
+	private long getCurrentThreadCpuTime(){
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+		if(threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()){
+			return threadMXBean.getCurrentThreadCpuTime();
+		}
+
+		return -1;
+	}
+
+	static
+	private long getCurrentThreadAllocatedBytes(){
+		Method method = Metrics.allocatedBytesMethod;
+
+		if(method == null){
+			return -1;
+		}
+
+		try {
+			return (Long)method.invoke(ManagementFactory.getThreadMXBean(), (Thread.currentThread()).getId());
+		} catch(Exception e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Allocation tracking is an extension of the Oracle (HotSpot) JVM.
+	 * The extension interface is looked up by name, so that other JVMs report allocated bytes as unavailable instead of failing to link this class.
+	 *
+	 * @return The <code>getThreadAllocatedBytes(long)</code> method, or <code>null</code>.
+	 */
+	static
+	private Method findAllocatedBytesMethod(){
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+		try {
+			Class<?> clazz = Class.forName("com.sun.management.ThreadMXBean");
+
+			if(!clazz.isInstance(threadMXBean)){
+				return null;
+			}
+
+			Method supportedMethod = clazz.getMethod("isThreadAllocatedMemorySupported");
+			Method enabledMethod = clazz.getMethod("isThreadAllocatedMemoryEnabled");
+
+			if(!(Boolean)supportedMethod.invoke(threadMXBean) || !(Boolean)enabledMethod.invoke(threadMXBean)){
+				return null;
+			}
+
+			return clazz.getMethod("getThreadAllocatedBytes", long.class);
+		} catch(Exception e){
+			return null;
+		} catch(LinkageError le){
+			return null;
+		}
+	}
+
+	/**
+	 * @return The nearest-rank percentile.
+	 */
+	static
+	private long percentile(long[] sortedValues, int percent){
+		int rank = (int)Math.ceil((percent / 100d) * sortedValues.length);
+
+		return sortedValues[Math.max(rank, 1) - 1];
+	}
+
+	static
+	private String toMillis(long nanos){
+		return formatNumber(nanos / 1e6d);
+	}
+
+	static
+	private String formatNumber(Number number){
+
+		if(number instanceof Double || number instanceof Float){
+			double value = number.doubleValue();
+
+			// JSON does not support special values
+			if(Double.isNaN(value) || Double.isInfinite(value)){
+				return "null";
+			}
+
+			return Double.toString(value);
+		}
+
+		return number.toString();
+	}
+
+	static
+	private String quote(String string){
+		StringBuilder sb = new StringBuilder();
+
+		sb.append('\"');
+
+		for(int i = 0; i < string.length(); i++){
+			char c = string.charAt(i);
+
+			switch(c){
+				case '\"':
+				case '\\':
+					sb.append('\\').append(c);
+					break;
+				default:
+					if(c < 0x20){
+						sb.append(String.format("\\u%04x", (int)c));
+					} else
+
+					{
+						sb.append(c);
+					}
+					break;
+			}
+		}
+
+		sb.append('\"');
+
+		return sb.toString();
+	}
+
+	private static final Method allocatedBytesMethod = findAllocatedBytesMethod();
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+
+import com.google.common.base.Optional;
+import org.dmg.pmml.DataDictionary;
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.Header;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Predicate;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.SimplePredicate;
+import org.dmg.pmml.TreeModel;
+import rexp.Rexp;
+
+/**
+ * Converts a list of models into a single PMML document.
+ *
+ * Every list element is converted by the converter for its class, and the resulting model is named after the list element.
+ * The DataDictionary element is the union of the DataDictionary elements of all models. A field must be defined identically in all models that use it, except that a continuous field may be boolean (ie. logical in R, or a binary indicator) in some models.
+ * The dependent variable of a model that was trained without a formula has no name of its own, so it is renamed after the list element (eg. <code>north._target</code>).
+ */
+public class ModelListConverter extends Converter {
+
+	private ExecutorService executorService = null;
+
+	private List<Converter> converters = new ArrayList<Converter>();
+
+
+	@Override
+	public PMML convert(LazyREXP list){
+		final
+		List<String> names = getNames(list);
+
+		final
+		List<LazyREXP> elements = getElements(list);
+
+		List<PMML> pmmls = new AbstractList<PMML>(){
+
+			@Override
+			public PMML get(int i){
+				return convert(names.get(i), elements.get(i));
+			}
+
+			@Override
+			public int size(){
+				return elements.size();
+			}
+		};
+
+		List<PMML> convertedPmmls = new ArrayList<PMML>();
+
+		Map<FieldName, DataField> dataFields = new LinkedHashMap<FieldName, DataField>();
+
+		for(PMML pmml : iterate(pmmls)){
+			convertedPmmls.add(pmml);
+
+			for(DataField dataField : (pmml.getDataDictionary()).getDataFields()){
+				dataFields.put(dataField.getName(), MergeMain.mergeDataField(dataFields.get(dataField.getName()), dataField));
+			}
+		}
+
+		List<Model> models = new ArrayList<Model>();
+
+		for(PMML pmml : convertedPmmls){
+			Set<FieldName> booleanFields = new HashSet<FieldName>();
+
+			for(DataField dataField : (pmml.getDataDictionary()).getDataFields()){
+				DataField mergedDataField = dataFields.get(dataField.getName());
+
+				if(!(dataField.getDataType()).equals(mergedDataField.getDataType())){
+					booleanFields.add(dataField.getName());
+				}
+			}
+
+			for(Model model : pmml.getModels()){
+
+				if(!booleanFields.isEmpty()){
+					rewriteBooleanPredicates(model, booleanFields);
+				}
+
+				models.add(model);
+			}
+		}
+
+		DataDictionary dataDictionary = new DataDictionary()
+			.withDataFields(dataFields.values());
+
+		PMML pmml = new PMML(new Header(), dataDictionary, "4.2")
+			.withModels(models);
+
+		return pmml;
+	}
+
+	/**
+	 * @return A converter for the list element.
+	 *
+	 * @throws IllegalArgumentException If the list element is not a model.
+	 */
+	protected Converter createConverter(LazyREXP element){
+		return Main.createModelConverter(element, null);
+	}
+
+	/**
+	 * Cancels the conversion of the current and all remaining list elements.
+	 */
+	@Override
+	public void cancel(){
+		super.cancel();
+
+		synchronized(this.converters){
+
+			for(Converter converter : this.converters){
+				converter.cancel();
+			}
+		}
+	}
+
+	private PMML convert(String name, LazyREXP element){
+		checkCancelled();
+
+		Converter converter = createConverter(element);
+		converter.setMetrics(getMetrics());
+		converter.setListener(getListener());
+		converter.setDeadline(getDeadline());
+
+		synchronized(this.converters){
+			this.converters.add(converter);
+		}
+
+		// The list may have been cancelled before the converter was registered
+		if(isCancelled()){
+			converter.cancel();
+		}
+
+		PMML pmml;
+
+		try {
+			pmml = converter.convert(element);
+		} catch(CancellationException ce){
+			throw ce;
+		} catch(RuntimeException re){
+			throw new IllegalArgumentException("Model " + name + " could not be converted", re);
+		} finally {
+
+			synchronized(this.converters){
+				this.converters.remove(converter);
+			}
+		}
+
+		renameField(pmml, TARGET, FieldName.create(name + "." + TARGET.getValue()));
+
+		for(Model model : pmml.getModels()){
+
+			if(model.getModelName() == null){
+				model.setModelName(name);
+			}
+		}
+
+		return pmml;
+	}
+
+	private <E> Iterable<E> iterate(List<E> list){
+		ExecutorService executorService = getExecutorService();
+
+		if(executorService == null || list.size() < 2){
+			return list;
+		}
+
+		return new ParallelIterable<E>(list, executorService, list.size());
+	}
+
+	public ExecutorService getExecutorService(){
+		return this.executorService;
+	}
+
+	/**
+	 * @param executorService An executor for converting list elements in parallel, or <code>null</code>.
+	 * List elements are converted sequentially by their own converters.
+	 */
+	public void setExecutorService(ExecutorService executorService){
+		this.executorService = executorService;
+	}
+
+	/**
+	 * @return <code>true</code> if the REXP message is a plain list, <code>false</code> if it is a model or some other object.
+	 */
+	static
+	public boolean isModelList(LazyREXP rexp){
+		return (Rexp.REXP.RClass.LIST).equals(rexp.getRclass()) && !(rexp.getAttribute("class")).isPresent();
+	}
+
+	static
+	public List<LazyREXP> getElements(LazyREXP list){
+		List<LazyREXP> result = new ArrayList<LazyREXP>(list.getRexpValueCount());
+
+		for(int i = 0; i < list.getRexpValueCount(); i++){
+			result.add(list.getRexpValue(i));
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return The names of list elements. Unnamed list elements are named after their 1-based positions.
+	 *
+	 * @throws IllegalArgumentException If the names are not unique.
+	 */
+	static
+	public List<String> getNames(LazyREXP list){
+		int count = list.getRexpValueCount();
+
+		List<String> result = new ArrayList<String>(count);
+
+		Optional<LazyREXP> names = list.getAttribute("names");
+
+		for(int i = 0; i < count; i++){
+			String name = null;
+
+			if(names.isPresent()){
+				Rexp.REXP value = (names.get()).getValue();
+
+				if(i < value.getStringValueCount()){
+					Rexp.STRING nameValue = value.getStringValue(i);
+
+					if(!nameValue.getIsNA()){
+						name = nameValue.getStrval();
+					}
+				}
+			} // End if
+
+			if(name == null || name.length() == 0){
+				name = String.valueOf(i + 1);
+			}
+
+			result.add(name);
+		}
+
+		Set<String> uniqueNames = new HashSet<String>(result);
+		if(uniqueNames.size() != result.size()){
+			throw new IllegalArgumentException("Model names " + result + " are not unique");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Renames a field in the DataDictionary element, and in the MiningSchema elements of all models and their segments.
+	 */
+	static
+	private void renameField(PMML pmml, FieldName name, FieldName newName){
+		boolean renamed = false;
+
+		for(DataField dataField : (pmml.getDataDictionary()).getDataFields()){
+
+			if((dataField.getName()).equals(name)){
+				dataField.setName(newName);
+
+				renamed = true;
+			}
+		}
+
+		if(!renamed){
+			return;
+		}
+
+		Deque<Model> models = new ArrayDeque<Model>(pmml.getModels());
+
+		while(!models.isEmpty()){
+			Model model = models.pop();
+
+			for(MiningField miningField : (model.getMiningSchema()).getMiningFields()){
+
+				if((miningField.getName()).equals(name)){
+					miningField.setName(newName);
+				}
+			}
+
+			if(model instanceof MiningModel){
+				MiningModel miningModel = (MiningModel)model;
+
+				for(Segment segment : (miningModel.getSegmentation()).getSegments()){
+					models.push(segment.getModel());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces <code>field == false</code> with <code>field &lt;= 0.5</code>, and <code>field == true</code> with <code>field &gt; 0.5</code>.
+	 * Split predicates on binary indicators are encoded as threshold predicates already, so only logical fields are affected.
+	 */
+	static
+	private void rewriteBooleanPredicates(Model model, Set<FieldName> fields){
+
+		if(model instanceof MiningModel){
+			MiningModel miningModel = (MiningModel)model;
+
+			for(Segment segment : (miningModel.getSegmentation()).getSegments()){
+				TreeModel treeModel = (TreeModel)segment.getModel();
+
+				Deque<Node> nodes = new ArrayDeque<Node>();
+				nodes.push(treeModel.getNode());
+
+				while(!nodes.isEmpty()){
+					Node node = nodes.pop();
+
+					Predicate predicate = node.getPredicate();
+
+					if(predicate instanceof SimplePredicate){
+						SimplePredicate simplePredicate = (SimplePredicate)predicate;
+
+						if((simplePredicate.getOperator()).equals(SimplePredicate.Operator.EQUAL) && fields.contains(simplePredicate.getField())){
+							boolean value = Boolean.parseBoolean(simplePredicate.getValue());
+
+							simplePredicate.setOperator(value ? SimplePredicate.Operator.GREATER_THAN : SimplePredicate.Operator.LESS_OR_EQUAL);
+							simplePredicate.setValue("0.5");
+						}
+					}
+
+					for(Node child : node.getNodes()){
+						nodes.push(child);
+					}
+				}
+			}
+		} else
+
+		{
+			throw new IllegalArgumentException("Model " + model.getModelName() + " does not support fields " + fields);
+		}
+	}
+
+	/**
+	 * The name of the dependent variable of a model that was trained without a formula.
+	 */
+	private static final FieldName TARGET = FieldName.create("_target");
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.math.BigInteger;
+
+/**
+ * Formats numbers as the shortest decimal strings that parse back to the same <code>double</code> values.
+ *
+ * Integral values are formatted as <code>long</code> values. All other values are formatted like {@link Double#toString(double)}, but the digits are computed using the Ryu algorithm (Ulf Adams, 2018), which never produces more digits than needed.
+ * Characters are appended directly to the target {@link StringBuilder}.
+ */
+public class NumberFormatter {
+
+	private NumberFormatter(){
+	}
+
+	/**
+	 * @return The value as a string.
+	 */
+	static
+	public String format(double value){
+		StringBuilder sb = NumberFormatter.buffer.get();
+		sb.setLength(0);
+
+		append(sb, value);
+
+		return sb.toString();
+	}
+
+	static
+	public StringBuilder append(StringBuilder sb, double value){
+
+		// Integral values that are representable as long values
+		if(value > -NumberFormatter.LONG_LIMIT && value < NumberFormatter.LONG_LIMIT){
+			long longValue = (long)value;
+
+			if(longValue == value){
+				return sb.append(longValue);
+			}
+		} // End if
+
+		if(Double.isNaN(value)){
+			return sb.append("NaN");
+		} else
+
+		if(Double.isInfinite(value)){
+			return sb.append(value > 0 ? "Infinity" : "-Infinity");
+		}
+
+		return appendDecimal(sb, value);
+	}
+
+	static
+	private StringBuilder appendDecimal(StringBuilder sb, double value){
+		long bits = Double.doubleToRawLongBits(value);
+
+		int ieeeExponent = (int)((bits >>> NumberFormatter.MANTISSA_BITS) & NumberFormatter.EXPONENT_MASK);
+		long ieeeMantissa = (bits & NumberFormatter.MANTISSA_MASK);
+
+		int e2;
+		long m2;
+
+		if(ieeeExponent == 0){
+			e2 = (1 - NumberFormatter.EXPONENT_BIAS - NumberFormatter.MANTISSA_BITS);
+			m2 = ieeeMantissa;
+		} else
+
+		{
+			e2 = (ieeeExponent - NumberFormatter.EXPONENT_BIAS - NumberFormatter.MANTISSA_BITS);
+			m2 = (ieeeMantissa | (1L << NumberFormatter.MANTISSA_BITS));
+		}
+
+		boolean even = ((m2 & 1) == 0);
+
+		// The halfway points to the neighbouring values, scaled by 4
+		long mv = 4 * m2;
+		long mp = 4 * m2 + 2;
+		int mmShift = ((m2 != (1L << NumberFormatter.MANTISSA_BITS)) || (ieeeExponent <= 1)) ? 1 : 0;
+		long mm = 4 * m2 - 1 - mmShift;
+
+		e2 -= 2;
+
+		long dv;
+		long dp;
+		long dm;
+
+		int e10;
+
+		boolean dmIsTrailingZeros = false;
+		boolean dvIsTrailingZeros = false;
+
+		if(e2 >= 0){
+			int q = Math.max(0, (int)(e2 * NumberFormatter.LOG10_2_NUMERATOR / NumberFormatter.LOG10_2_DENOMINATOR) - 1);
+			int k = NumberFormatter.POW5_INV_BITCOUNT + pow5bits(q) - 1;
+			int i = -e2 + q + k;
+
+			dv = mulPow5InvDivPow2(mv, q, i);
+			dp = mulPow5InvDivPow2(mp, q, i);
+			dm = mulPow5InvDivPow2(mm, q, i);
+
+			e10 = q;
+
+			if(q <= 21){
+
+				if(mv % 5 == 0){
+					dvIsTrailingZeros = multipleOfPowerOf5(mv, q);
+				} else
+
+				if(even){
+					dmIsTrailingZeros = multipleOfPowerOf5(mm, q);
+				} else
+
+				{
+					dp -= (multipleOfPowerOf5(mp, q) ? 1 : 0);
+				}
+			}
+		} else
+
+		{
+			int q = Math.max(0, (int)(-e2 * NumberFormatter.LOG10_5_NUMERATOR / NumberFormatter.LOG10_5_DENOMINATOR) - 1);
+			int i = -e2 - q;
+			int k = pow5bits(i) - NumberFormatter.POW5_BITCOUNT;
+			int j = q - k;
+
+			dv = mulPow5DivPow2(mv, i, j);
+			dp = mulPow5DivPow2(mp, i, j);
+			dm = mulPow5DivPow2(mm, i, j);
+
+			e10 = q + e2;
+
+			if(q <= 1){
+				dvIsTrailingZeros = true;
+
+				if(even){
+					dmIsTrailingZeros = (mmShift == 1);
+				} else
+
+				{
+					dp--;
+				}
+			} else
+
+			if(q < 63){
+				dvIsTrailingZeros = ((mv & ((1L << (q - 1)) - 1)) == 0);
+			}
+		}
+
+		// Remove digits for as long as the bounds allow, and round the remainder
+		int removed = 0;
+		int lastRemovedDigit = 0;
+
+		long output;
+
+		if(dmIsTrailingZeros || dvIsTrailingZeros){
+
+			while(dp / 10 > dm / 10){
+
+				dmIsTrailingZeros &= (dm % 10 == 0);
+				dvIsTrailingZeros &= (lastRemovedDigit == 0);
+
+				lastRemovedDigit = (int)(dv % 10);
+
+				dp /= 10;
+				dv /= 10;
+				dm /= 10;
+
+				removed++;
+			}
+
+			if(dmIsTrailingZeros && even){
+
+				while(dm % 10 == 0){
+
+					dvIsTrailingZeros &= (lastRemovedDigit == 0);
+
+					lastRemovedDigit = (int)(dv % 10);
+
+					dp /= 10;
+					dv /= 10;
+					dm /= 10;
+
+					removed++;
+				}
+			} // End if
+
+			// Round half to even
+			if(dvIsTrailingZeros && (lastRemovedDigit == 5) && (dv % 2 == 0)){
+				lastRemovedDigit = 4;
+			}
+
+			output = dv + (((dv == dm && !(dmIsTrailingZeros && even)) || (lastRemovedDigit >= 5)) ? 1 : 0);
+		} else
+
+		{
+			while(dp / 10 > dm / 10){
+				lastRemovedDigit = (int)(dv % 10);
+
+				dp /= 10;
+				dv /= 10;
+				dm /= 10;
+
+				removed++;
+			}
+
+			output = dv + (((dv == dm) || (lastRemovedDigit >= 5)) ? 1 : 0);
+		}
+
+		int length = decimalLength(output);
+
+		// The exponent of the leading digit
+		int exponent = (e10 + removed + length - 1);
+
+		if(value < 0){
+			sb.append('-');
+		} // End if
+
+		// Plain notation
+		if(exponent >= -3 && exponent < 7){
+
+			if(exponent < 0){
+				sb.append('0').append('.');
+
+				for(int i = -1; i > exponent; i--){
+					sb.append('0');
+				}
+
+				appendDigits(sb, output, length, -1);
+			} else
+
+			if(length <= exponent + 1){
+				appendDigits(sb, output, length, -1);
+
+				for(int i = length; i <= exponent; i++){
+					sb.append('0');
+				}
+
+				sb.append('.').append('0');
+			} else
+
+			{
+				appendDigits(sb, output, length, exponent + 1);
+			}
+		} else
+
+		// Computerized scientific notation
+		{
+			appendDigits(sb, output, length, 1);
+
+			if(length == 1){
+				sb.append('.').append('0');
+			}
+
+			sb.append('E').append(exponent);
+		}
+
+		return sb;
+	}
+
+	/**
+	 * @param point The number of digits before the decimal point, or <code>-1</code>.
+	 */
+	static
+	private void appendDigits(StringBuilder sb, long output, int length, int point){
+		boolean hasPoint = (point > 0 && point < length);
+
+		int end = sb.length() + length + (hasPoint ? 1 : 0);
+
+		sb.setLength(end);
+
+		// Fill in from the right
+		int index = end;
+
+		for(int i = length - 1; i > -1; i--){
+			sb.setCharAt(--index, (char)('0' + (int)(output % 10)));
+
+			output /= 10;
+
+			if(hasPoint && i == point){
+				sb.setCharAt(--index, '.');
+			}
+		}
+	}
+
+	static
+	private int decimalLength(long value){
+		int result = 1;
+
+		while(result < NumberFormatter.POWERS_OF_10.length && value >= NumberFormatter.POWERS_OF_10[result]){
+			result++;
+		}
+
+		return result;
+	}
+
+	static
+	private int pow5bits(int e){
+		return (e == 0) ? 1 : (int)((e * 23219280L + 10000000L - 1) / 10000000L);
+	}
+
+	static
+	private int pow5Factor(long value){
+		int result = 0;
+
+		while(value > 0 && value % 5 == 0){
+			value /= 5;
+
+			result++;
+		}
+
+		return result;
+	}
+
+	static
+	private boolean multipleOfPowerOf5(long value, int q){
+		return pow5Factor(value) >= q;
+	}
+
+	/**
+	 * @param m A value that has at most 55 bits.
+	 *
+	 * @return <code>floor(m * 5<sup>i</sup> / 2<sup>j</sup>)</code>.
+	 */
+	static
+	private long mulPow5DivPow2(long m, int i, int j){
+		return mulShift(m, NumberFormatter.POW5_SPLIT[i], j);
+	}
+
+	/**
+	 * @return <code>floor(m / (5<sup>q</sup> * 2<sup>j</sup>))</code>, scaled.
+	 */
+	static
+	private long mulPow5InvDivPow2(long m, int q, int j){
+		return mulShift(m, NumberFormatter.POW5_INV_SPLIT[q], j);
+	}
+
+	/**
+	 * Multiplies a 55-bit value by a 124-bit value that is split into four 31-bit quarters, and shifts the product right.
+	 */
+	static
+	private long mulShift(long m, int[] factor, int j){
+		long mHigh = (m >>> 31);
+		long mLow = (m & 0x7fffffffL);
+
+		long bits13 = mHigh * factor[0];
+		long bits03 = mLow * factor[0];
+		long bits12 = mHigh * factor[1];
+		long bits02 = mLow * factor[1];
+		long bits11 = mHigh * factor[2];
+		long bits01 = mLow * factor[2];
+		long bits10 = mHigh * factor[3];
+		long bits00 = mLow * factor[3];
+
+		int actualShift = (j - 3 * 31 - 21);
+		if(actualShift < 0){
+			throw new IllegalArgumentException();
+		}
+
+		return ((((((((bits00 >>> 31) + bits01 + bits10) >>> 31) + bits02 + bits11) >>> 31) + bits03 + bits12) >>> 21) + (bits13 << 10)) >>> actualShift;
+	}
+
+	private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>(){
+
+		@Override
+		protected StringBuilder initialValue(){
+			return new StringBuilder(32);
+		}
+	};
+
+	private static final double LONG_LIMIT = 0x1p63;
+
+	private static final int MANTISSA_BITS = 52;
+	private static final long MANTISSA_MASK = (1L << MANTISSA_BITS) - 1;
+	private static final int EXPONENT_MASK = (1 << 11) - 1;
+	private static final int EXPONENT_BIAS = 1023;
+
+	private static final long LOG10_2_DENOMINATOR = 10000000L;
+	private static final long LOG10_2_NUMERATOR = (long)(LOG10_2_DENOMINATOR * Math.log10(2));
+
+	private static final long LOG10_5_DENOMINATOR = 10000000L;
+	private static final long LOG10_5_NUMERATOR = (long)(LOG10_5_DENOMINATOR * Math.log10(5));
+
+	private static final int POW5_BITCOUNT = 121;
+	private static final int POW5_INV_BITCOUNT = 122;
+
+	private static final int[][] POW5_SPLIT = new int[326][4];
+	private static final int[][] POW5_INV_SPLIT = new int[291][4];
+
+	private static final long[] POWERS_OF_10 = new long[18];
+
+	static {
+		BigInteger mask = (BigInteger.ONE.shiftLeft(31)).subtract(BigInteger.ONE);
+
+		for(int i = 0; i < Math.max(POW5_SPLIT.length, POW5_INV_SPLIT.length); i++){
+			BigInteger pow = BigInteger.valueOf(5).pow(i);
+
+			int pow5len = pow.bitLength();
+
+			if(i < POW5_SPLIT.length){
+
+				for(int j = 0; j < 4; j++){
+					POW5_SPLIT[i][j] = ((pow.shiftRight(pow5len - POW5_BITCOUNT + (3 - j) * 31)).and(mask)).intValue();
+				}
+			} // End if
+
+			if(i < POW5_INV_SPLIT.length){
+				BigInteger inv = ((BigInteger.ONE.shiftLeft(pow5len - 1 + POW5_INV_BITCOUNT)).divide(pow)).add(BigInteger.ONE);
+
+				for(int j = 0; j < 4; j++){
+
+					if(j == 0){
+						POW5_INV_SPLIT[i][j] = (inv.shiftRight((3 - j) * 31)).intValue();
+					} else
+
+					{
+						POW5_INV_SPLIT[i][j] = ((inv.shiftRight((3 - j) * 31)).and(mask)).intValue();
+					}
+				}
+			}
+		}
+
+		long pow = 1;
+
+		for(int i = 0; i < POWERS_OF_10.length; i++){
+			POWERS_OF_10[i] = pow;
+
+			pow *= 10;
+		}
+	}
+}
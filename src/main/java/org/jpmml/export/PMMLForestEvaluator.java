@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dmg.pmml.Array;
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.DataType;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.FieldUsageType;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.MiningFunctionType;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Predicate;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.SimplePredicate;
+import org.dmg.pmml.SimpleSetPredicate;
+import org.dmg.pmml.TreeModel;
+import org.dmg.pmml.True;
+import org.dmg.pmml.Value;
+
+/**
+ * Scores the trees of a Random Forest model as they are encoded in a PMML document.
+ *
+ * The trees are walked through their Node elements, and every split predicate is evaluated as written.
+ * This makes it possible to check the output of {@link RandomForestConverter} against {@link RandomForestEvaluator} or {@link CompiledForest} without a separate PMML engine.
+ *
+ * Data records have the same layout as in {@link RandomForestEvaluator}. The value of a boolean predictor is <code>true</code> if it is greater than 0.5.
+ * Missing values are not supported.
+ */
+public class PMMLForestEvaluator {
+
+	private MiningFunctionType miningFunction = null;
+
+	private List<TreeModel> treeModels = new ArrayList<TreeModel>();
+
+	private Map<String, Integer> levelIndices = new HashMap<String, Integer>();
+
+	private Map<FieldName, Integer> varIndices = new HashMap<FieldName, Integer>();
+
+	private Map<FieldName, DataField> dataFields = new HashMap<FieldName, DataField>();
+
+	/**
+	 * The parsed values of predicates, keyed by identity.
+	 */
+	private Map<Predicate, Object> operands = new IdentityHashMap<Predicate, Object>();
+
+
+	/**
+	 * @param names The names of predictors, in the order of data record elements.
+	 */
+	public PMMLForestEvaluator(PMML pmml, List<String> names){
+		List<Model> models = pmml.getModels();
+
+		if(models.size() != 1 || !(models.get(0) instanceof MiningModel)){
+			throw new IllegalArgumentException("Expected a single MiningModel element");
+		}
+
+		MiningModel miningModel = (MiningModel)models.get(0);
+
+		this.miningFunction = miningModel.getFunctionName();
+
+		for(DataField dataField : (pmml.getDataDictionary()).getDataFields()){
+			this.dataFields.put(dataField.getName(), dataField);
+		}
+
+		for(int i = 0; i < names.size(); i++){
+			this.varIndices.put(FieldName.create(names.get(i)), i);
+		}
+
+		for(MiningField miningField : (miningModel.getMiningSchema()).getMiningFields()){
+			FieldUsageType usageType = miningField.getUsageType();
+
+			if((FieldUsageType.TARGET).equals(usageType) || (FieldUsageType.PREDICTED).equals(usageType)){
+				DataField dataField = getDataField(miningField.getName());
+
+				List<Value> values = dataField.getValues();
+
+				for(int i = 0; i < values.size(); i++){
+					this.levelIndices.put((values.get(i)).getValue(), i);
+				}
+			}
+		}
+
+		for(Segment segment : (miningModel.getSegmentation()).getSegments()){
+			TreeModel treeModel = (TreeModel)segment.getModel();
+
+			Deque<Node> nodes = new ArrayDeque<Node>();
+			nodes.push(treeModel.getNode());
+
+			while(!nodes.isEmpty()){
+				Node node = nodes.pop();
+
+				parse(node.getPredicate());
+
+				for(Node child : node.getNodes()){
+					nodes.push(child);
+				}
+			}
+
+			this.treeModels.add(treeModel);
+		}
+	}
+
+	/**
+	 * @return The predicted value (regression) or the 0-based index of the predicted class (classification) of the specified tree.
+	 *
+	 * @throws IllegalArgumentException If no child node matches the data record.
+	 */
+	public double evaluateTree(int tree, double[] row){
+		Node node = (this.treeModels.get(tree)).getNode();
+
+		if(!evaluate(node.getPredicate(), row)){
+			throw new IllegalArgumentException("Tree " + tree + " does not match the data record");
+		}
+
+		while(!(node.getNodes()).isEmpty()){
+			Node match = null;
+
+			for(Node child : node.getNodes()){
+
+				if(evaluate(child.getPredicate(), row)){
+					match = child;
+
+					break;
+				}
+			}
+
+			if(match == null){
+				throw new IllegalArgumentException("Node " + node.getId() + " of tree " + tree + " has no child node that matches the data record");
+			}
+
+			node = match;
+		}
+
+		String score = node.getScore();
+
+		switch(this.miningFunction){
+			case REGRESSION:
+				return Double.parseDouble(score);
+			case CLASSIFICATION:
+				{
+					Integer index = this.levelIndices.get(score);
+					if(index == null){
+						throw new IllegalArgumentException("Unknown class " + score);
+					}
+
+					return index;
+				}
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	public int getTreeCount(){
+		return this.treeModels.size();
+	}
+
+	private boolean evaluate(Predicate predicate, double[] row){
+
+		if(predicate instanceof True){
+			return true;
+		} else
+
+		if(predicate instanceof SimplePredicate){
+			SimplePredicate simplePredicate = (SimplePredicate)predicate;
+
+			double x = row[getVarIndex(simplePredicate.getField())];
+
+			Object operand = this.operands.get(predicate);
+
+			switch(simplePredicate.getOperator()){
+				case LESS_OR_EQUAL:
+					return (x <= (Double)operand);
+				case GREATER_THAN:
+					return (x > (Double)operand);
+				case EQUAL:
+					if(operand instanceof Boolean){
+						return (x > 0.5d) == (Boolean)operand;
+					}
+					return (x == (Double)operand);
+				default:
+					throw new IllegalArgumentException();
+			}
+		} else
+
+		if(predicate instanceof SimpleSetPredicate){
+			SimpleSetPredicate simpleSetPredicate = (SimpleSetPredicate)predicate;
+
+			FieldName name = simpleSetPredicate.getField();
+
+			List<Value> values = (getDataField(name)).getValues();
+
+			double x = row[getVarIndex(name)];
+
+			// A level that the field does not have is not a member of any set
+			if(x < 0d || x >= values.size() || x != Math.floor(x)){
+				return false;
+			}
+
+			@SuppressWarnings("unchecked")
+			Set<String> set = (Set<String>)this.operands.get(predicate);
+
+			boolean member = set.contains((values.get((int)x)).getValue());
+
+			switch(simpleSetPredicate.getBooleanOperator()){
+				case IS_IN:
+					return member;
+				case IS_NOT_IN:
+					return !member;
+				default:
+					throw new IllegalArgumentException();
+			}
+		}
+
+		throw new IllegalArgumentException("Unsupported predicate " + predicate);
+	}
+
+	private void parse(Predicate predicate){
+
+		if(predicate instanceof True || this.operands.containsKey(predicate)){
+			return;
+		} // End if
+
+		if(predicate instanceof SimplePredicate){
+			SimplePredicate simplePredicate = (SimplePredicate)predicate;
+
+			DataField dataField = getDataField(simplePredicate.getField());
+
+			// Binary indicators are boolean fields, but they are split by comparing with 0.5
+			if((DataType.BOOLEAN).equals(dataField.getDataType()) && (SimplePredicate.Operator.EQUAL).equals(simplePredicate.getOperator())){
+				this.operands.put(predicate, Boolean.valueOf(simplePredicate.getValue()));
+			} else
+
+			{
+				this.operands.put(predicate, Double.valueOf(simplePredicate.getValue()));
+			}
+		} else
+
+		if(predicate instanceof SimpleSetPredicate){
+			SimpleSetPredicate simpleSetPredicate = (SimpleSetPredicate)predicate;
+
+			Array array = simpleSetPredicate.getArray();
+
+			this.operands.put(predicate, new HashSet<String>(parseArray(array.getValue())));
+		} else
+
+		{
+			throw new IllegalArgumentException("Unsupported predicate " + predicate);
+		}
+	}
+
+	private int getVarIndex(FieldName name){
+		Integer index = this.varIndices.get(name);
+
+		if(index == null){
+			throw new IllegalArgumentException("Field " + name.getValue() + " is not a predictor");
+		}
+
+		return index;
+	}
+
+	private DataField getDataField(FieldName name){
+		DataField dataField = this.dataFields.get(name);
+
+		if(dataField == null){
+			throw new IllegalArgumentException("Field " + name.getValue() + " is not defined");
+		}
+
+		return dataField;
+	}
+
+	/**
+	 * Splits the content of an Array element into values. Values are separated by whitespace, and may be enclosed in double quotes.
+	 */
+	static
+	private List<String> parseArray(String string){
+		List<String> result = new ArrayList<String>();
+
+		StringBuilder sb = new StringBuilder();
+
+		int i = 0;
+
+		while(i < string.length()){
+			char c = string.charAt(i);
+
+			if(Character.isWhitespace(c)){
+				i++;
+
+				continue;
+			} // End if
+
+			sb.setLength(0);
+
+			if(c == '\"'){
+				i++;
+
+				while(i < string.length()){
+					c = string.charAt(i++);
+
+					if(c == '\\' && i < string.length()){
+						sb.append(string.charAt(i++));
+					} else
+
+					if(c == '\"'){
+						break;
+					} else
+
+					{
+						sb.append(c);
+					}
+				}
+			} else
+
+			{
+
+				while(i < string.length() && !Character.isWhitespace(string.charAt(i))){
+					sb.append(string.charAt(i++));
+				}
+			}
+
+			result.add(sb.toString());
+		}
+
+		return Collections.unmodifiableList(result);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jpmml.model.JAXBUtil;
+import org.jpmml.schema.Version;
+
+/**
+ * A PMML writer that emits the document piece by piece.
+ *
+ * The enclosing elements are written by hand, and the content elements are marshalled one by one as JAXB fragments.
+ * Once a content element has been written, it may be discarded.
+ *
+ * Content that has been marshalled elsewhere (eg. by a fragment writer) can be copied in verbatim.
+ */
+public class PMMLStreamWriter {
+
+	private OutputStream os = null;
+
+	private BufferedOutputStream buffer = null;
+
+	private XMLStreamWriter writer = null;
+
+	private Marshaller marshaller = null;
+
+
+	public PMMLStreamWriter(OutputStream os) throws JAXBException, XMLStreamException {
+		XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+		this.os = os;
+
+		// StAX writers emit many small chunks
+		this.buffer = new BufferedOutputStream(os, 64 * 1024);
+
+		this.writer = outputFactory.createXMLStreamWriter(this.buffer, "UTF-8");
+
+		this.marshaller = (JAXBUtil.getContext()).createMarshaller();
+		this.marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+	}
+
+	public void writeStartDocument() throws XMLStreamException {
+		Version version = Version.PMML_4_2;
+
+		this.writer.writeStartDocument("UTF-8", "1.0");
+
+		this.writer.setDefaultNamespace(version.getNamespaceURI());
+
+		this.writer.writeStartElement(version.getNamespaceURI(), "PMML");
+		this.writer.writeDefaultNamespace(version.getNamespaceURI());
+		this.writer.writeAttribute("version", version.getVersion());
+	}
+
+	/**
+	 * Starts a sequence of content elements that will be copied into a document later on.
+	 * The elements are written in the PMML namespace, but without declaring it.
+	 */
+	public void writeStartFragment() throws XMLStreamException {
+		Version version = Version.PMML_4_2;
+
+		this.writer.setDefaultNamespace(version.getNamespaceURI());
+	}
+
+	public void writeEndDocument() throws XMLStreamException {
+		this.writer.writeEndElement();
+		this.writer.writeEndDocument();
+
+		this.writer.flush();
+	}
+
+	public void writeStartElement(String localName) throws XMLStreamException {
+		Version version = Version.PMML_4_2;
+
+		this.writer.writeStartElement(version.getNamespaceURI(), localName);
+	}
+
+	public void writeAttribute(String localName, String value) throws XMLStreamException {
+		this.writer.writeAttribute(localName, value);
+	}
+
+	public void writeEndElement() throws XMLStreamException {
+		this.writer.writeEndElement();
+	}
+
+	/**
+	 * @param element A PMML class instance.
+	 */
+	public void writeElement(Object element) throws JAXBException {
+		this.marshaller.marshal(element, this.writer);
+	}
+
+	/**
+	 * Copies the contents of a file into the current element.
+	 * The copying is done by the operating system if the underlying stream is a {@link FileOutputStream}.
+	 */
+	public void writeRaw(FileChannel channel) throws IOException, XMLStreamException {
+		// Close the start tag of the current element
+		this.writer.writeCharacters("");
+
+		this.writer.flush();
+		this.buffer.flush();
+
+		WritableByteChannel target;
+
+		if(this.os instanceof FileOutputStream){
+			target = ((FileOutputStream)this.os).getChannel();
+		} else
+
+		{
+			target = Channels.newChannel(this.os);
+		}
+
+		long position = 0;
+		long size = channel.size();
+
+		while(position < size){
+			position += channel.transferTo(position, size - position, target);
+		}
+	}
+
+	public void flush() throws XMLStreamException {
+		this.writer.flush();
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Throwables;
+
+/**
+ * A GZIP output stream that compresses fixed-size blocks of data independently of one another.
+ *
+ * Every block is written as a complete GZIP member. According to RFC 1952, a sequence of members is a single valid GZIP stream, and standard tools decompress it as one.
+ * Blocks are compressed on the executor, if there is one, and written in their original order.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+
+	private ExecutorService executorService = null;
+
+	private byte[] buffer = null;
+
+	private int count = 0;
+
+	private Deque<Future<byte[]>> futures = new ArrayDeque<Future<byte[]>>();
+
+	private int window = 0;
+
+	private boolean closed = false;
+
+
+	public ParallelGZIPOutputStream(OutputStream os, ExecutorService executorService){
+		this(os, executorService, ParallelGZIPOutputStream.BLOCK_SIZE, ParallelGZIPOutputStream.WINDOW_SIZE);
+	}
+
+	/**
+	 * @param blockSize The number of uncompressed bytes per block.
+	 * @param window The maximum number of blocks that are being compressed at the same time.
+	 */
+	public ParallelGZIPOutputStream(OutputStream os, ExecutorService executorService, int blockSize, int window){
+		super(os);
+
+		if(blockSize < 1 || window < 1){
+			throw new IllegalArgumentException();
+		}
+
+		this.executorService = executorService;
+		this.buffer = new byte[blockSize];
+		this.window = window;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+
+		this.buffer[this.count++] = (byte)b;
+
+		if(this.count == this.buffer.length){
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		ensureOpen();
+
+		while(length > 0){
+			int count = Math.min(length, this.buffer.length - this.count);
+
+			System.arraycopy(bytes, offset, this.buffer, this.count, count);
+
+			this.count += count;
+
+			offset += count;
+			length -= count;
+
+			if(this.count == this.buffer.length){
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Compresses and writes all buffered data.
+	 * The partial block becomes a GZIP member of its own, so frequent flushing is detrimental to the compression ratio.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+
+		if(this.count > 0){
+			submitBlock();
+		}
+
+		while(!this.futures.isEmpty()){
+			writeBlock();
+		}
+
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if(this.closed){
+			return;
+		}
+
+		try {
+			flush();
+		} finally {
+			this.closed = true;
+
+			cancel();
+
+			this.out.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+
+		if(this.closed){
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final
+		byte[] block = this.buffer;
+
+		final
+		int length = this.count;
+
+		this.buffer = new byte[block.length];
+		this.count = 0;
+
+		if(this.executorService == null){
+			this.out.write(compress(block, length));
+
+			return;
+		}
+
+		Callable<byte[]> callable = new Callable<byte[]>(){
+
+			@Override
+			public byte[] call(){
+				return compress(block, length);
+			}
+		};
+
+		while(this.futures.size() >= this.window){
+			writeBlock();
+		}
+
+		this.futures.addLast(this.executorService.submit(callable));
+	}
+
+	private void writeBlock() throws IOException {
+		Future<byte[]> future = this.futures.pollFirst();
+
+		byte[] member;
+
+		try {
+			member = future.get();
+		} catch(InterruptedException ie){
+			cancel();
+
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException();
+		} catch(ExecutionException ee){
+			cancel();
+
+			throw Throwables.propagate(ee.getCause());
+		}
+
+		this.out.write(member);
+	}
+
+	private void cancel(){
+
+		while(!this.futures.isEmpty()){
+			Future<byte[]> future = this.futures.pollFirst();
+
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * @return A complete GZIP member.
+	 */
+	static
+	private byte[] compress(byte[] block, int length){
+		ByteArrayOutputStream os = new ByteArrayOutputStream(length / 4 + 64);
+
+		os.write(ParallelGZIPOutputStream.HEADER, 0, ParallelGZIPOutputStream.HEADER.length);
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+		try {
+			deflater.setInput(block, 0, length);
+			deflater.finish();
+
+			byte[] buffer = new byte[64 * 1024];
+
+			while(!deflater.finished()){
+				int count = deflater.deflate(buffer);
+
+				os.write(buffer, 0, count);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(block, 0, length);
+
+		writeInt(os, (int)crc.getValue());
+		writeInt(os, length);
+
+		return os.toByteArray();
+	}
+
+	static
+	private void writeInt(ByteArrayOutputStream os, int value){
+		os.write(value & 0xff);
+		os.write((value >> 8) & 0xff);
+		os.write((value >> 16) & 0xff);
+		os.write((value >> 24) & 0xff);
+	}
+
+	/**
+	 * Magic number, compression method (deflate), flags, modification time, extra flags and operating system.
+	 */
+	private static final byte[] HEADER = {
+		(byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private static final int BLOCK_SIZE = (1024 * 1024);
+
+	private static final int WINDOW_SIZE = 16;
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+
+/**
+ * An iterable over a lazily computed list, whose elements are computed ahead of the iterator on an executor.
+ *
+ * The elements are returned in list order.
+ * The number of elements that are computed, but not yet returned is bounded.
+ */
+public class ParallelIterable<E> implements Iterable<E> {
+
+	private List<E> list = null;
+
+	private ExecutorService executorService = null;
+
+	private int window = 0;
+
+
+	public ParallelIterable(List<E> list, ExecutorService executorService, int window){
+		this.list = list;
+		this.executorService = executorService;
+
+		if(window < 1){
+			throw new IllegalArgumentException();
+		}
+
+		this.window = window;
+	}
+
+	@Override
+	public Iterator<E> iterator(){
+		Iterator<E> result = new Iterator<E>(){
+
+			private int index = 0;
+
+			private Deque<Future<E>> futures = new ArrayDeque<Future<E>>();
+
+
+			@Override
+			public boolean hasNext(){
+				return (this.index < ParallelIterable.this.list.size()) || !this.futures.isEmpty();
+			}
+
+			@Override
+			public E next(){
+				List<E> list = ParallelIterable.this.list;
+
+				while((this.index < list.size()) && (this.futures.size() < ParallelIterable.this.window)){
+					this.futures.addLast(submit(this.index));
+
+					this.index++;
+				}
+
+				Future<E> future = this.futures.pollFirst();
+				if(future == null){
+					throw new NoSuchElementException();
+				}
+
+				try {
+					return future.get();
+				} catch(InterruptedException ie){
+					cancel();
+
+					Thread.currentThread().interrupt();
+
+					throw Throwables.propagate(ie);
+				} catch(ExecutionException ee){
+					cancel();
+
+					throw Throwables.propagate(ee.getCause());
+				}
+			}
+
+			@Override
+			public void remove(){
+				throw new UnsupportedOperationException();
+			}
+
+			private Future<E> submit(final int index){
+				final
+				List<E> list = ParallelIterable.this.list;
+
+				Callable<E> callable = new Callable<E>(){
+
+					@Override
+					public E call(){
+						return list.get(index);
+					}
+				};
+
+				return ParallelIterable.this.executorService.submit(callable);
+			}
+
+			private void cancel(){
+
+				while(!this.futures.isEmpty()){
+					Future<E> future = this.futures.pollFirst();
+
+					future.cancel(true);
+				}
+
+				this.index = ParallelIterable.this.list.size();
+			}
+		};
+
+		return result;
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import org.dmg.pmml.Predicate;
+
+/**
+ * A cache of split predicates, keyed by split variable index, split value and split direction.
+ *
+ * Keys are kept in primitive arrays using open addressing, so lookups do not allocate.
+ * The table is divided into independently locked stripes, which lets concurrent tree encoders proceed without contention.
+ * A bounded table stops caching new predicates when it becomes full.
+ */
+abstract
+public class PredicateTable {
+
+	private Stripe[] stripes = null;
+
+
+	/**
+	 * Creates an unbounded table.
+	 */
+	public PredicateTable(){
+		this(0);
+	}
+
+	/**
+	 * @param maximumSize The maximum number of cached predicates, or <code>0</code> for no limit.
+	 */
+	public PredicateTable(int maximumSize){
+
+		if(maximumSize < 0){
+			throw new IllegalArgumentException();
+		}
+
+		this.stripes = new Stripe[PredicateTable.STRIPES];
+
+		for(int i = 0; i < this.stripes.length; i++){
+			this.stripes[i] = new Stripe(maximumSize > 0 ? Math.max(1, maximumSize / PredicateTable.STRIPES) : Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Creates a new predicate.
+	 *
+	 * This method is called without holding any locks. It may be called more than once for the same key, in which case only one result is kept.
+	 */
+	abstract
+	protected Predicate load(int var, double split, boolean leftDaughter);
+
+	/**
+	 * @param var The 1-based index of the split variable.
+	 */
+	public Predicate get(int var, double split, boolean leftDaughter){
+
+		if(var < 1 || var > PredicateTable.MAX_VAR){
+			throw new IllegalArgumentException();
+		}
+
+		// Zero marks an empty slot
+		int key = ((var << 1) | (leftDaughter ? 1 : 0));
+		long bits = Double.doubleToLongBits(split);
+
+		int hash = hash(key, bits);
+
+		Stripe stripe = this.stripes[hash >>> (32 - PredicateTable.STRIPE_BITS)];
+
+		synchronized(stripe){
+			Predicate predicate = stripe.get(key, bits, hash);
+
+			if(predicate != null){
+				stripe.hitCount++;
+
+				return predicate;
+			}
+
+			stripe.missCount++;
+		}
+
+		Predicate predicate = load(var, split, leftDaughter);
+
+		synchronized(stripe){
+			Predicate existingPredicate = stripe.putIfAbsent(key, bits, hash, predicate);
+
+			if(existingPredicate != null){
+				return existingPredicate;
+			}
+		}
+
+		return predicate;
+	}
+
+	public int size(){
+		int result = 0;
+
+		for(Stripe stripe : this.stripes){
+
+			synchronized(stripe){
+				result += stripe.size;
+			}
+		}
+
+		return result;
+	}
+
+	public long getHitCount(){
+		long result = 0;
+
+		for(Stripe stripe : this.stripes){
+
+			synchronized(stripe){
+				result += stripe.hitCount;
+			}
+		}
+
+		return result;
+	}
+
+	public long getMissCount(){
+		long result = 0;
+
+		for(Stripe stripe : this.stripes){
+
+			synchronized(stripe){
+				result += stripe.missCount;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return The ratio of hits to lookups, or <code>1</code> if there have been no lookups.
+	 */
+	public double getHitRate(){
+		long hitCount = getHitCount();
+		long missCount = getMissCount();
+
+		long requestCount = (hitCount + missCount);
+		if(requestCount == 0){
+			return 1d;
+		}
+
+		return (double)hitCount / (double)requestCount;
+	}
+
+	static
+	private int hash(int key, long bits){
+		long value = (bits * 0x9E3779B97F4A7C15L) ^ key;
+
+		// The finalization step of MurmurHash3
+		value ^= (value >>> 33);
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= (value >>> 33);
+		value *= 0xC4CEB9FE1A85EC53L;
+		value ^= (value >>> 33);
+
+		return (int)value;
+	}
+
+	static
+	private class Stripe {
+
+		private int[] keys = new int[16];
+
+		private long[] bits = new long[16];
+
+		private Predicate[] predicates = new Predicate[16];
+
+		private int size = 0;
+
+		private int maximumSize = 0;
+
+		private long hitCount = 0;
+
+		private long missCount = 0;
+
+
+		private Stripe(int maximumSize){
+			this.maximumSize = maximumSize;
+		}
+
+		private Predicate get(int key, long bits, int hash){
+			int mask = (this.keys.length - 1);
+
+			for(int i = (hash & mask); ; i = ((i + 1) & mask)){
+				int slotKey = this.keys[i];
+
+				if(slotKey == 0){
+					return null;
+				} // End if
+
+				if(slotKey == key && this.bits[i] == bits){
+					return this.predicates[i];
+				}
+			}
+		}
+
+		/**
+		 * @return The existing predicate, or <code>null</code>.
+		 */
+		private Predicate putIfAbsent(int key, long bits, int hash, Predicate predicate){
+			Predicate existingPredicate = get(key, bits, hash);
+
+			if(existingPredicate != null){
+				return existingPredicate;
+			} // End if
+
+			if(this.size >= this.maximumSize){
+				return null;
+			} // End if
+
+			// Keep the load factor at or below 0.5
+			if(2 * (this.size + 1) > this.keys.length){
+				resize(2 * this.keys.length);
+			}
+
+			insert(key, bits, hash, predicate);
+
+			this.size++;
+
+			return null;
+		}
+
+		private void insert(int key, long bits, int hash, Predicate predicate){
+			int mask = (this.keys.length - 1);
+
+			int i = (hash & mask);
+
+			while(this.keys[i] != 0){
+				i = ((i + 1) & mask);
+			}
+
+			this.keys[i] = key;
+			this.bits[i] = bits;
+			this.predicates[i] = predicate;
+		}
+
+		private void resize(int capacity){
+			int[] keys = this.keys;
+			long[] bits = this.bits;
+			Predicate[] predicates = this.predicates;
+
+			this.keys = new int[capacity];
+			this.bits = new long[capacity];
+			this.predicates = new Predicate[capacity];
+
+			for(int i = 0; i < keys.length; i++){
+
+				if(keys[i] != 0){
+					insert(keys[i], bits[i], hash(keys[i], bits[i]), predicates[i]);
+				}
+			}
+		}
+	}
+
+	private static final int STRIPE_BITS = 4;
+
+	private static final int STRIPES = (1 << STRIPE_BITS);
+
+	private static final int MAX_VAR = (Integer.MAX_VALUE >> 1);
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * A random access source of ProtoBuf-encoded bytes.
+ */
+abstract
+public class ProtoBufSource implements Closeable {
+
+	abstract
+	public long size();
+
+	/**
+	 * @param position The offset of the first byte.
+	 * @param length The number of bytes that are available for reading.
+	 */
+	abstract
+	public CodedInputStream newCodedInputStream(long position, long length) throws IOException;
+
+	static
+	protected CodedInputStream newCodedInputStream(InputStream is){
+		CodedInputStream cis = CodedInputStream.newInstance(is);
+		cis.setSizeLimit(Integer.MAX_VALUE);
+
+		return cis;
+	}
+}
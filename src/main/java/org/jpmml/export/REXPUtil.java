@@ -6,6 +6,8 @@ package org.jpmml.export;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.google.common.base.Optional;
+import com.google.common.math.DoubleMath;
 import rexp.Rexp;
 import rexp.Rexp.STRING;
 
@@ -15,24 +17,21 @@ public class REXPUtil {
 	}
 
 	static
-	public <E> List<E> getRow(List<E> matrix, int k, int rows, int columns){
-		List<E> row = new ArrayList<E>();
+	public boolean inherits(LazyREXP rexp, String name){
+		LazyREXP clazz = REXPUtil.attribute(rexp, "class");
 
-		for(int i = 0; i < columns; i++){
-			row.add(matrix.get((i * rows) + k));
-		}
-
-		return row;
+		return contains(clazz.getValue(), name);
 	}
 
 	static
-	public <E> List<E> getColumn(List<E> matrix, int k, int rows, int columns){
-		return matrix.subList(k * rows, (k * rows) + rows);
+	public boolean inherits(Rexp.REXP rexp, String name){
+		Rexp.REXP clazz = REXPUtil.attribute(rexp, "class");
+
+		return contains(clazz, name);
 	}
 
 	static
-	public boolean inherits(Rexp.REXP rexp, String name){
-		Rexp.REXP clazz = REXPUtil.attribute(rexp, "class");
+	private boolean contains(Rexp.REXP clazz, String name){
 
 		for(int i = 0; i < clazz.getStringValueCount(); i++){
 			STRING clazzValue = clazz.getStringValue(i);
@@ -45,18 +44,33 @@ public class REXPUtil {
 		return false;
 	}
 
+	static
+	public LazyREXP field(LazyREXP rexp, String name){
+		Optional<LazyREXP> result = rexp.getField(name);
+
+		if(!result.isPresent()){
+			throw new IllegalArgumentException("Field " + name + " not in " + rexp.getFieldNames());
+		}
+
+		return result.get();
+	}
+
 	static
 	public Rexp.REXP field(Rexp.REXP rexp, String name){
 		Rexp.REXP names = attribute(rexp, "names");
 
-		List<String> fields = new ArrayList<String>();
-
 		for(int i = 0; i < names.getStringValueCount(); i++){
 			STRING nameValue = names.getStringValue(i);
 
 			if((name).equals(nameValue.getStrval())){
 				return rexp.getRexpValue(i);
 			}
+		}
+
+		List<String> fields = new ArrayList<String>();
+
+		for(int i = 0; i < names.getStringValueCount(); i++){
+			STRING nameValue = names.getStringValue(i);
 
 			fields.add(nameValue.getStrval());
 		}
@@ -64,19 +78,77 @@ public class REXPUtil {
 		throw new IllegalArgumentException("Field " + name + " not in " + fields);
 	}
 
+	static
+	public LazyREXP attribute(LazyREXP rexp, String name){
+		Optional<LazyREXP> result = rexp.getAttribute(name);
+
+		if(!result.isPresent()){
+			List<String> attributes = new ArrayList<String>();
+
+			for(int i = 0; i < rexp.getAttrNameCount(); i++){
+				attributes.add(rexp.getAttrName(i));
+			}
+
+			throw new IllegalArgumentException("Attribute " + name + " not in " + attributes);
+		}
+
+		return result.get();
+	}
+
 	static
 	public Rexp.REXP attribute(Rexp.REXP rexp, String name){
-		List<String> attributes = new ArrayList<String>();
 
 		for(int i = 0; i < rexp.getAttrNameCount(); i++){
 
 			if((rexp.getAttrName(i)).equals(name)){
 				return rexp.getAttrValue(i);
 			}
+		}
+
+		throw new IllegalArgumentException("Attribute " + name + " not in " + rexp.getAttrNameList());
+	}
+
+	/**
+	 * @see LazyREXP#find(String)
+	 */
+	static
+	public LazyREXP find(LazyREXP rexp, String path){
+		Optional<LazyREXP> result = rexp.find(path);
+
+		if(!result.isPresent()){
+			throw new IllegalArgumentException("Path " + path + " not found");
+		}
+
+		return result.get();
+	}
+
+	/**
+	 * @return The values of an integer or an integer-valued real vector.
+	 */
+	static
+	public int[] getIndices(LazyREXP rexp){
+		int[] intValues = rexp.getIntValues();
+		if(intValues.length > 0){
+			return intValues;
+		}
+
+		double[] realValues = rexp.getRealValues();
+		if(realValues.length > 0){
+			int[] result = new int[realValues.length];
+
+			for(int i = 0; i < realValues.length; i++){
+				double value = realValues[i];
+
+				if(!DoubleMath.isMathematicalInteger(value)){
+					throw new IllegalArgumentException();
+				}
+
+				result[i] = (int)value;
+			}
 
-			attributes.add(rexp.getAttrName(i));
+			return result;
 		}
 
-		throw new IllegalArgumentException("Attribute " + name + " not in " + attributes);
+		throw new IllegalArgumentException();
 	}
 }
\ No newline at end of file
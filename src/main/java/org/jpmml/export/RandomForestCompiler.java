@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.CodeSource;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Throwables;
+import org.dmg.pmml.PMML;
+
+/**
+ * Generates and compiles Java source code for a Random Forest model.
+ *
+ * Every tree becomes a class, whose methods hard-code thresholds and categorical sets as nested branches.
+ * Large trees are split into several methods, so that no method grows too large to be compiled by the JIT compiler.
+ *
+ * The source code is compiled in-process, and loaded through a dedicated class loader.
+ * The compiled forest is then checked tree by tree against {@link RandomForestEvaluator}, and against the PMML encoding of the forest (see {@link PMMLForestEvaluator}) if one is available.
+ * A compiler that is created from a <code>randomForest</code> object converts it with the default options of {@link RandomForestConverter}.
+ * Compilation requires a JDK.
+ */
+public class RandomForestCompiler {
+
+	private RandomForestEvaluator evaluator = null;
+
+	private PMML pmml = null;
+
+	private String className = "Forest";
+
+	private int verificationRows = 1000;
+
+
+	public RandomForestCompiler(LazyREXP randomForest){
+		this(new RandomForestEvaluator(randomForest));
+
+		RandomForestConverter converter = new RandomForestConverter();
+
+		this.pmml = converter.convert(randomForest);
+	}
+
+	public RandomForestCompiler(RandomForestEvaluator evaluator){
+		this.evaluator = evaluator;
+	}
+
+	public String generateSource(){
+		RandomForestEvaluator evaluator = getEvaluator();
+
+		String className = getClassName();
+
+		int ntree = evaluator.getTreeCount();
+		int classes = (evaluator.getLevels()).size();
+
+		int chunks = ((ntree + (RandomForestCompiler.TREE_CHUNK - 1)) / RandomForestCompiler.TREE_CHUNK);
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("public final class ").append(className).append(" extends ").append(CompiledForest.class.getName()).append(" {\n");
+		sb.append("\n");
+
+		sb.append("\t@Override\n");
+		sb.append("\tpublic int getTreeCount(){\n");
+		sb.append("\t\treturn ").append(ntree).append(";\n");
+		sb.append("\t}\n");
+		sb.append("\n");
+
+		sb.append("\t@Override\n");
+		sb.append("\tpublic double evaluateTree(int tree, double[] x){\n");
+		sb.append("\t\tswitch(tree / ").append(RandomForestCompiler.TREE_CHUNK).append("){\n");
+
+		for(int chunk = 0; chunk < chunks; chunk++){
+			sb.append("\t\t\tcase ").append(chunk).append(":\n");
+			sb.append("\t\t\t\treturn evaluateTree").append(chunk).append("(tree, x);\n");
+		}
+
+		sb.append("\t\t\tdefault:\n");
+		sb.append("\t\t\t\tthrow new IllegalArgumentException();\n");
+		sb.append("\t\t}\n");
+		sb.append("\t}\n");
+		sb.append("\n");
+
+		sb.append("\t@Override\n");
+		sb.append("\tpublic double predict(double[] x){\n");
+
+		if(classes > 0){
+			sb.append("\t\tint[] votes = new int[").append(classes).append("];\n");
+			sb.append("\n");
+
+			for(int chunk = 0; chunk < chunks; chunk++){
+				sb.append("\t\tvote").append(chunk).append("(x, votes);\n");
+			}
+
+			sb.append("\n");
+			sb.append("\t\treturn getWinner(votes);\n");
+		} else
+
+		{
+			sb.append("\t\tdouble sum = 0d;\n");
+			sb.append("\n");
+
+			for(int chunk = 0; chunk < chunks; chunk++){
+				sb.append("\t\tsum += sum").append(chunk).append("(x);\n");
+			}
+
+			sb.append("\n");
+			sb.append("\t\treturn sum / ").append(ntree).append(";\n");
+		}
+
+		sb.append("\t}\n");
+
+		for(int chunk = 0; chunk < chunks; chunk++){
+			int begin = (chunk * RandomForestCompiler.TREE_CHUNK);
+			int end = Math.min(begin + RandomForestCompiler.TREE_CHUNK, ntree);
+
+			sb.append("\n");
+			sb.append("\tstatic private double evaluateTree").append(chunk).append("(int tree, double[] x){\n");
+			sb.append("\t\tswitch(tree){\n");
+
+			for(int tree = begin; tree < end; tree++){
+				sb.append("\t\t\tcase ").append(tree).append(":\n");
+				sb.append("\t\t\t\treturn Tree").append(tree).append(".evaluate(x);\n");
+			}
+
+			sb.append("\t\t\tdefault:\n");
+			sb.append("\t\t\t\tthrow new IllegalArgumentException();\n");
+			sb.append("\t\t}\n");
+			sb.append("\t}\n");
+			sb.append("\n");
+
+			if(classes > 0){
+				sb.append("\tstatic private void vote").append(chunk).append("(double[] x, int[] votes){\n");
+
+				for(int tree = begin; tree < end; tree++){
+					sb.append("\t\tvotes[(int)Tree").append(tree).append(".evaluate(x)]++;\n");
+				}
+			} else
+
+			{
+				sb.append("\tstatic private double sum").append(chunk).append("(double[] x){\n");
+				sb.append("\t\tdouble sum = 0d;\n");
+				sb.append("\n");
+
+				for(int tree = begin; tree < end; tree++){
+					sb.append("\t\tsum += Tree").append(tree).append(".evaluate(x);\n");
+				}
+
+				sb.append("\n");
+				sb.append("\t\treturn sum;\n");
+			}
+
+			sb.append("\t}\n");
+		}
+
+		for(int tree = 0; tree < ntree; tree++){
+			sb.append("\n");
+
+			generateTree(sb, tree);
+		}
+
+		sb.append("}\n");
+
+		return sb.toString();
+	}
+
+	private void generateTree(StringBuilder sb, int tree){
+		RandomForestEvaluator evaluator = getEvaluator();
+
+		int offset = (tree * evaluator.getNodeCount());
+
+		sb.append("\tstatic final class Tree").append(tree).append(" {\n");
+
+		// Subtrees that did not fit into the method of their parent node
+		Deque<Integer> methods = new ArrayDeque<Integer>();
+		methods.addLast(offset);
+
+		while(!methods.isEmpty()){
+			int node = methods.pollFirst();
+
+			sb.append("\n");
+			sb.append("\t\tstatic double ").append(node == offset ? "evaluate" : ("node" + (node - offset))).append("(double[] x){\n");
+
+			int[] budget = {RandomForestCompiler.METHOD_NODES};
+
+			generateNode(sb, node, offset, 3, budget, methods);
+
+			sb.append("\t\t}\n");
+		}
+
+		sb.append("\t}\n");
+	}
+
+	/**
+	 * Generates the left subtree as the body of an <code>if</code> statement, and the right subtree as the statements that follow it.
+	 * The depth of recursion is bounded by the budget.
+	 */
+	private void generateNode(StringBuilder sb, int node, int offset, int depth, int[] budget, Deque<Integer> methods){
+		RandomForestEvaluator evaluator = getEvaluator();
+
+		int[] leftChild = evaluator.getLeftChild();
+		int[] rightChild = evaluator.getRightChild();
+		int[] splitVar = evaluator.getSplitVar();
+
+		while(true){
+			indent(sb, depth);
+
+			int var = splitVar[node];
+			if(var < 0){
+				sb.append("return ").append(formatDouble((evaluator.getValue())[node])).append(";\n");
+
+				return;
+			} // End if
+
+			if(budget[0] <= 0){
+				methods.addLast(node);
+
+				sb.append("return node").append(node - offset).append("(x);\n");
+
+				return;
+			}
+
+			budget[0]--;
+
+			String x = ("x[" + var + "]");
+
+			sb.append("if(");
+
+			if(evaluator.isCategorical(var)){
+				// Send "true" categories to the left
+				sb.append(x).append(" >= 0d && ").append(x).append(" < 64d && ((0x").append(Long.toHexString((evaluator.getMask())[node])).append("L >>> (int)").append(x).append(") & 1L) != 0L");
+			} else
+
+			{
+				sb.append(x).append(" <= ").append(formatDouble((evaluator.getThreshold())[node]));
+			}
+
+			sb.append("){\n");
+
+			generateNode(sb, leftChild[node], offset, depth + 1, budget, methods);
+
+			indent(sb, depth);
+			sb.append("}\n");
+			sb.append("\n");
+
+			node = rightChild[node];
+		}
+	}
+
+	/**
+	 * Generates, compiles and verifies the forest.
+	 *
+	 * @throws IllegalStateException If the Java compiler is not available, if the generated source cannot be compiled, or if the compiled forest does not agree with the evaluator.
+	 */
+	public CompiledForest compile(){
+		String className = getClassName();
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if(compiler == null){
+			throw new IllegalStateException("Java compiler is not available");
+		}
+
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+
+		MemoryFileManager fileManager = new MemoryFileManager(compiler.getStandardFileManager(diagnostics, null, null));
+
+		JavaFileObject source = new SourceFileObject(className, generateSource());
+
+		List<String> options = Arrays.asList("-classpath", getClassPath(), "-g:none", "-nowarn");
+
+		Boolean success = (compiler.getTask(null, fileManager, diagnostics, options, null, Collections.singletonList(source))).call();
+		if(!success){
+			StringBuilder sb = new StringBuilder();
+
+			for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()){
+
+				if((Diagnostic.Kind.ERROR).equals(diagnostic.getKind())){
+
+					if(sb.length() > 0){
+						sb.append('\n');
+					}
+
+					sb.append(diagnostic.getMessage(null));
+				}
+			}
+
+			// The generated source should always compile
+			throw new IllegalStateException("Failed to compile the forest: " + sb.toString());
+		}
+
+		ClassLoader classLoader = new ByteArrayClassLoader(CompiledForest.class.getClassLoader(), fileManager.getClasses());
+
+		CompiledForest forest;
+
+		try {
+			Class<?> clazz = classLoader.loadClass(className);
+
+			forest = (CompiledForest)(clazz.getConstructor()).newInstance();
+		} catch(Exception e){
+			throw Throwables.propagate(e);
+		}
+
+		RandomForestEvaluator evaluator = getEvaluator();
+
+		double[][] rows = evaluator.generateRows(getVerificationRows(), new Random(42L));
+
+		verify(forest, rows);
+
+		PMML pmml = getPmml();
+		if(pmml != null){
+			verify(forest, new PMMLForestEvaluator(pmml, evaluator.getNames()), rows);
+		}
+
+		return forest;
+	}
+
+	/**
+	 * Checks that every tree of the compiled forest predicts the same value as the evaluator.
+	 *
+	 * @throws IllegalStateException If there is a disagreement.
+	 */
+	public void verify(CompiledForest forest, double[][] rows){
+		RandomForestEvaluator evaluator = getEvaluator();
+
+		if(forest.getTreeCount() != evaluator.getTreeCount()){
+			throw new IllegalStateException();
+		}
+
+		for(int tree = 0; tree < evaluator.getTreeCount(); tree++){
+
+			for(int i = 0; i < rows.length; i++){
+				double expected = evaluator.evaluateTree(tree, rows[i]);
+				double actual = forest.evaluateTree(tree, rows[i]);
+
+				if(Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)){
+					throw new IllegalStateException("Tree " + tree + " predicts " + actual + " (expected " + expected + ") for " + Arrays.toString(rows[i]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that every tree of the compiled forest predicts the same value as its Segment element in the PMML document.
+	 *
+	 * @throws IllegalStateException If there is a disagreement.
+	 */
+	public void verify(CompiledForest forest, PMMLForestEvaluator pmmlEvaluator, double[][] rows){
+
+		if(forest.getTreeCount() != pmmlEvaluator.getTreeCount()){
+			throw new IllegalStateException("Expected " + forest.getTreeCount() + " Segment elements, got " + pmmlEvaluator.getTreeCount());
+		}
+
+		for(int tree = 0; tree < forest.getTreeCount(); tree++){
+
+			for(int i = 0; i < rows.length; i++){
+				double expected = pmmlEvaluator.evaluateTree(tree, rows[i]);
+				double actual = forest.evaluateTree(tree, rows[i]);
+
+				if(Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)){
+					throw new IllegalStateException("Tree " + tree + " predicts " + actual + " (expected " + expected + " by the PMML encoding) for " + Arrays.toString(rows[i]));
+				}
+			}
+		}
+	}
+
+	public RandomForestEvaluator getEvaluator(){
+		return this.evaluator;
+	}
+
+	public PMML getPmml(){
+		return this.pmml;
+	}
+
+	/**
+	 * @param pmml The PMML encoding of the forest, as converted by {@link RandomForestConverter} without leaving out trees, or <code>null</code>.
+	 */
+	public void setPmml(PMML pmml){
+		this.pmml = pmml;
+	}
+
+	public String getClassName(){
+		return this.className;
+	}
+
+	/**
+	 * @param className The simple name of the generated class.
+	 */
+	public void setClassName(String className){
+		this.className = className;
+	}
+
+	public int getVerificationRows(){
+		return this.verificationRows;
+	}
+
+	/**
+	 * @param verificationRows The number of generated data records that the compiled forest is checked against.
+	 */
+	public void setVerificationRows(int verificationRows){
+		this.verificationRows = verificationRows;
+	}
+
+	static
+	private void indent(StringBuilder sb, int depth){
+
+		for(int i = 0; i < depth; i++){
+			sb.append('\t');
+		}
+	}
+
+	static
+	private String formatDouble(double value){
+
+		if(Double.isNaN(value)){
+			return "Double.NaN";
+		} else
+
+		if(Double.isInfinite(value)){
+			return (value > 0d ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY");
+		}
+
+		// Parses back to the same value
+		return Double.toString(value) + "d";
+	}
+
+	/**
+	 * @return The class path of the current JVM, together with the location of this library.
+	 */
+	static
+	private String getClassPath(){
+		String classPath = System.getProperty("java.class.path");
+
+		CodeSource codeSource = (CompiledForest.class.getProtectionDomain()).getCodeSource();
+		if(codeSource != null && codeSource.getLocation() != null){
+
+			try {
+				File file = new File((codeSource.getLocation()).toURI());
+
+				classPath = (file.getPath() + File.pathSeparator + classPath);
+			} catch(Exception e){
+				// Ignored
+			}
+		}
+
+		return classPath;
+	}
+
+	static
+	private class SourceFileObject extends SimpleJavaFileObject {
+
+		private String source = null;
+
+
+		private SourceFileObject(String className, String source){
+			super(URI.create("string:///" + className + (JavaFileObject.Kind.SOURCE).extension), JavaFileObject.Kind.SOURCE);
+
+			this.source = source;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors){
+			return this.source;
+		}
+	}
+
+	static
+	private class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+		private Map<String, ByteArrayOutputStream> classes = new LinkedHashMap<String, ByteArrayOutputStream>();
+
+
+		private MemoryFileManager(JavaFileManager fileManager){
+			super(fileManager);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location, final String className, JavaFileObject.Kind kind, FileObject sibling){
+			JavaFileObject result = new SimpleJavaFileObject(URI.create("memory:///" + className.replace('.', '/') + kind.extension), kind){
+
+				@Override
+				public OutputStream openOutputStream(){
+					ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+					MemoryFileManager.this.classes.put(className, os);
+
+					return os;
+				}
+			};
+
+			return result;
+		}
+
+		public Map<String, byte[]> getClasses(){
+			Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+
+			for(Map.Entry<String, ByteArrayOutputStream> entry : this.classes.entrySet()){
+				result.put(entry.getKey(), (entry.getValue()).toByteArray());
+			}
+
+			return result;
+		}
+	}
+
+	static
+	private class ByteArrayClassLoader extends ClassLoader {
+
+		private Map<String, byte[]> classes = null;
+
+
+		private ByteArrayClassLoader(ClassLoader parent, Map<String, byte[]> classes){
+			super(parent);
+
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = this.classes.get(name);
+
+			if(bytes == null){
+				throw new ClassNotFoundException(name);
+			}
+
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static final int TREE_CHUNK = 128;
+
+	/**
+	 * The maximum number of split nodes per generated method.
+	 */
+	private static final int METHOD_NODES = 128;
+}
@@ -3,23 +3,38 @@
  */
 package org.jpmml.export;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Function;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.base.Optional;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import org.dmg.pmml.AbstractVisitor;
+import com.google.common.collect.Range;
+import com.google.common.math.DoubleMath;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import org.dmg.pmml.Array;
 import org.dmg.pmml.DataDictionary;
 import org.dmg.pmml.DataField;
@@ -43,7 +58,6 @@ import org.dmg.pmml.SimpleSetPredicate;
 import org.dmg.pmml.TreeModel;
 import org.dmg.pmml.True;
 import org.dmg.pmml.Value;
-import org.dmg.pmml.VisitorAction;
 import rexp.Rexp;
 import rexp.Rexp.STRING;
 
@@ -51,251 +65,579 @@ public class RandomForestConverter extends Converter {
 
 	private List<DataField> dataFields = new ArrayList<DataField>();
 
-	private LoadingCache<PredicateKey, SimpleSetPredicate> leftSimpleSetPredicates = CacheBuilder.newBuilder()
-		.build(new CacheLoader<PredicateKey, SimpleSetPredicate>(){
+	/**
+	 * For every categorical field, the levels as Array tokens (ie. quoted if necessary).
+	 */
+	private List<String[]> levelTokens = null;
 
-			@Override
-			public SimpleSetPredicate load(PredicateKey key){
-				return encodeSimpleSetPredicate(key.getDataField(), asInteger(key.getSplit()), true);
-			}
-		});
+	private PredicateTable predicates = null;
 
-	private LoadingCache<PredicateKey, SimpleSetPredicate> rightSimpleSetPredicates = CacheBuilder.newBuilder()
-		.build(new CacheLoader<PredicateKey, SimpleSetPredicate>(){
+	private ExecutorService executorService = null;
 
-			@Override
-			public SimpleSetPredicate load(PredicateKey key){
-				return encodeSimpleSetPredicate(key.getDataField(), asInteger(key.getSplit()), false);
-			}
-		});
+	private boolean prune = false;
 
-	private LoadingCache<PredicateKey, SimplePredicate> leftSimplePredicates = CacheBuilder.newBuilder()
-		.build(new CacheLoader<PredicateKey, SimplePredicate>(){
+	private AtomicLong prunedNodes = new AtomicLong(0);
 
-			@Override
-			public SimplePredicate load(PredicateKey key){
-				return encodeSimplePredicate(key.getDataField(), asDouble(key.getSplit()), true);
-			}
-		});
+	private boolean deduplicate = false;
+
+	private Range<Integer> treeRange = null;
+
+	private boolean spill = false;
+
+	private boolean nodeIds = true;
+
+	private int thresholdPrecision = RandomForestConverter.PRECISION_FULL;
+
+	/**
+	 * The rounded split thresholds of continuous fields, or <code>null</code>.
+	 */
+	private Thresholds thresholds = null;
+
+	private AtomicLong savedBytes = new AtomicLong(0);
+
+	/**
+	 * The 0-based index of the first encoded tree.
+	 */
+	private int firstTree = 0;
+
+	/**
+	 * The field usage of all encoded trees.
+	 */
+	private FieldUsage fieldUsage = new FieldUsage();
+
+	/**
+	 * The data types of all fields, as declared by R, before they were refined according to field usage.
+	 */
+	private DataType[] declaredDataTypes = null;
+
+	/**
+	 * For every tree, the number of identical trees if it is the first of them, or <code>0</code> otherwise.
+	 */
+	private int[] multiplicities = null;
 
-	private LoadingCache<PredicateKey, SimplePredicate> rightSimplePredicates = CacheBuilder.newBuilder()
-		.build(new CacheLoader<PredicateKey, SimplePredicate>(){
+
+	public RandomForestConverter(){
+		this(0);
+	}
+
+	/**
+	 * @param maximumPredicates The maximum number of cached split predicates, or <code>0</code> for no limit.
+	 */
+	public RandomForestConverter(int maximumPredicates){
+		this.predicates = new PredicateTable(maximumPredicates){
 
 			@Override
-			public SimplePredicate load(PredicateKey key){
-				return encodeSimplePredicate(key.getDataField(), asDouble(key.getSplit()), false);
+			protected Predicate load(int var, double split, boolean leftDaughter){
+				DataField dataField = RandomForestConverter.this.dataFields.get(var);
+
+				DataType dataType = getDeclaredDataType(var);
+				switch(dataType){
+					case STRING:
+						return encodeSimpleSetPredicate(var, dataField, asMask(split), leftDaughter);
+					case DOUBLE:
+					case BOOLEAN:
+						Thresholds thresholds = RandomForestConverter.this.thresholds;
+
+						if(thresholds != null){
+							split = thresholds.getRounded(var, split);
+						}
+
+						return encodeSimplePredicate(dataField, dataType, split, leftDaughter);
+					default:
+						throw new IllegalArgumentException();
+				}
 			}
-		});
+		};
+	}
+
+	@Override
+	public PMML convert(LazyREXP randomForest){
+		MiningFunctionType miningFunction = getMiningFunction(randomForest);
 
+		List<TreeModel> treeModels = encodeTreeModels(randomForest, miningFunction);
 
-	public RandomForestConverter(){
+		PMML pmml = encodePMML(miningFunction, treeModels);
+
+		initDataFields(this.fieldUsage);
+
+		recordCacheStats();
+
+		return pmml;
 	}
 
+	/**
+	 * Writes every Segment element as soon as its tree has been encoded.
+	 * The DataDictionary and MiningSchema elements precede all Segment elements, so field usage and field types are determined upfront by scanning the split variables of the forest.
+	 * The scan classifies splits the same way as the tree encoder does.
+	 *
+	 * @see #setSpill(boolean)
+	 */
 	@Override
-	public PMML convert(Rexp.REXP randomForest){
-		Rexp.REXP type = REXPUtil.field(randomForest, "type");
-		Rexp.REXP forest = REXPUtil.field(randomForest, "forest");
+	public void convert(LazyREXP randomForest, OutputStream os) throws Exception {
+
+		if(getSpill()){
+			spill(randomForest, os);
+
+			return;
+		}
+
+		MiningFunctionType miningFunction = getMiningFunction(randomForest);
+
+		List<TreeModel> treeModels = encodeTreeModels(randomForest, miningFunction);
+
+		LazyREXP forest = REXPUtil.field(randomForest, "forest");
+
+		LazyREXP xbestsplit = REXPUtil.field(forest, "xbestsplit");
+
+		Metrics.Timer timer = startTimer("analyzeFieldTypes");
+
+		FieldUsage forestFieldUsage = new FieldUsage();
+
+		Rexp.REXP nrnodes = (REXPUtil.field(forest, "nrnodes")).getValue();
+
+		int rows = nrnodes.getIntValue(0);
+
+		int begin = this.firstTree;
+		int end = (this.firstTree + treeModels.size());
+
+		int[] splitVariables = getSplitVariables(forest, miningFunction, begin, end);
+		double[] splitValues = xbestsplit.getRealValues();
+
+		// The nodes of encoded trees
+		for(int i = (begin * rows); i < (end * rows); i++){
+			int var = splitVariables[i];
+
+			if(var != 0){
+				forestFieldUsage.add(var, getDeclaredDataType(var), splitValues[i]);
+			}
+		}
+
+		initDataFields(forestFieldUsage);
+
+		stopTimer(timer);
+
+		Set<FieldName> forestFields = getFields(forestFieldUsage);
+
+		timer = startTimer("encodeDataDictionary");
+
+		DataDictionary dataDictionary = encodeDataDictionary(forestFields);
+		MiningSchema miningSchema = encodeMiningSchema(forestFields);
+
+		stopTimer(timer);
+
+		PMMLStreamWriter writer = new PMMLStreamWriter(os);
+
+		writer.writeStartDocument();
+		writer.writeElement(new Header());
+		writer.writeElement(dataDictionary);
+
+		writer.writeStartElement("MiningModel");
+		writer.writeAttribute("functionName", miningFunction.value());
+		writer.writeElement(miningSchema);
+
+		writer.writeStartElement("Segmentation");
+		writer.writeAttribute("multipleModelMethod", (getMultipleModelMethod(miningFunction, this.multiplicities != null)).value());
+
+		Iterable<Segment> segments = iterate(encodeSegments(treeModels));
+
+		for(Segment segment : segments){
+			timer = startTimer("writeSegment");
+
+			writer.writeElement(segment);
+
+			stopTimer(timer);
+		}
+
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.writeEndDocument();
+
+		recordCacheStats();
+	}
+
+	/**
+	 * Writes every Segment element to a temporary file as soon as its tree has been encoded.
+	 * The PMML document is assembled after all trees have been encoded, when field usage and field types are known.
+	 */
+	private void spill(LazyREXP randomForest, OutputStream os) throws Exception {
+		MiningFunctionType miningFunction = getMiningFunction(randomForest);
+
+		List<TreeModel> treeModels = encodeTreeModels(randomForest, miningFunction);
+
+		File file = File.createTempFile("segments-", ".xml");
 
 		try {
-			Rexp.REXP terms = REXPUtil.field(randomForest, "terms");
+			OutputStream fragmentOs = new FileOutputStream(file);
 
-			// The RF model was trained using the formula interface
-			initFormulaFields(terms);
-		} catch(IllegalArgumentException iae){
-			Rexp.REXP xlevels = REXPUtil.field(forest, "xlevels");
-			Rexp.REXP ncat = REXPUtil.field(forest, "ncat");
+			try {
+				PMMLStreamWriter fragmentWriter = new PMMLStreamWriter(fragmentOs);
+				fragmentWriter.writeStartFragment();
+
+				Iterable<Segment> segments = iterate(encodeSegments(treeModels));
+
+				for(Segment segment : segments){
+					Metrics.Timer timer = startTimer("writeSegment");
+
+					fragmentWriter.writeElement(segment);
+
+					stopTimer(timer);
+				}
+
+				fragmentWriter.flush();
+			} finally {
+				fragmentOs.close();
+			}
 
-			Rexp.REXP y;
+			// All trees have been encoded
+			initDataFields(this.fieldUsage);
+
+			Set<FieldName> forestFields = getFields(this.fieldUsage);
+
+			Metrics.Timer timer = startTimer("encodeDataDictionary");
+
+			DataDictionary dataDictionary = encodeDataDictionary(forestFields);
+			MiningSchema miningSchema = encodeMiningSchema(forestFields);
+
+			stopTimer(timer);
+
+			PMMLStreamWriter writer = new PMMLStreamWriter(os);
+
+			writer.writeStartDocument();
+			writer.writeElement(new Header());
+			writer.writeElement(dataDictionary);
+
+			writer.writeStartElement("MiningModel");
+			writer.writeAttribute("functionName", miningFunction.value());
+			writer.writeElement(miningSchema);
+
+			writer.writeStartElement("Segmentation");
+			writer.writeAttribute("multipleModelMethod", (getMultipleModelMethod(miningFunction, this.multiplicities != null)).value());
+
+			timer = startTimer("copySegments");
+
+			RandomAccessFile fragmentFile = new RandomAccessFile(file, "r");
 
 			try {
-				y = REXPUtil.field(randomForest, "y");
-			} catch(IllegalArgumentException iaeChild){
-				y = null;
+				writer.writeRaw(fragmentFile.getChannel());
+			} finally {
+				fragmentFile.close();
 			}
 
-			// The RF model was trained using the matrix (ie. non-formula) interface
-			initNonFormulaFields(xlevels, ncat, y);
-		}
+			stopTimer(timer);
 
-		PMML pmml;
+			writer.writeEndElement();
+			writer.writeEndElement();
+			writer.writeEndDocument();
+		} finally {
+			file.delete();
+		}
 
-		STRING typeValue = type.getStringValue(0);
+		recordCacheStats();
+	}
 
-		if("regression".equals(typeValue.getStrval())){
-			pmml = convertRegression(forest);
-		} else
+	private List<TreeModel> encodeTreeModels(LazyREXP randomForest, MiningFunctionType miningFunction){
+		LazyREXP forest = REXPUtil.field(randomForest, "forest");
 
-		if("classification".equals(typeValue.getStrval())){
-			Rexp.REXP y = REXPUtil.field(randomForest, "y");
+		Optional<LazyREXP> terms = randomForest.getField("terms");
 
-			pmml = convertClassification(forest, y);
+		if(terms.isPresent()){
+			// The RF model was trained using the formula interface
+			initFormulaFields((terms.get()).getValue());
 		} else
 
 		{
-			throw new IllegalArgumentException();
-		}
+			Rexp.REXP xlevels = (REXPUtil.field(forest, "xlevels")).getValue();
+			Rexp.REXP ncat = (REXPUtil.field(forest, "ncat")).getValue();
 
-		FieldTypeAnalyzer fieldTypeAnalyzer = new FieldTypeAnalyzer();
-		pmml.accept(fieldTypeAnalyzer);
+			Optional<LazyREXP> y = randomForest.getField("y");
 
-		List<DataField> dataFields = this.dataFields;
-		for(DataField dataField : dataFields){
-			DataType dataType = fieldTypeAnalyzer.getDataType(dataField.getName());
+			// The RF model was trained using the matrix (ie. non-formula) interface
+			initNonFormulaFields(xlevels, ncat, y.isPresent() ? (y.get()).getValue() : null);
+		}
 
-			// An unused field
-			if(dataType == null){
-				continue;
-			}
+		List<TreeModel> treeModels;
+
+		switch(miningFunction){
+			case REGRESSION:
+				treeModels = convertRegression(forest);
+				break;
+			case CLASSIFICATION:
+				Rexp.REXP y = (REXPUtil.field(randomForest, "y")).getValue();
 
-			dataField = initDataField(dataField, dataType);
+				treeModels = convertClassification(forest, y);
+				break;
+			default:
+				throw new IllegalArgumentException();
 		}
 
-		return pmml;
+		// Duplicate trees are not encoded
+		startProgress(treeModels.size() - getDuplicateTrees());
+
+		return treeModels;
 	}
 
-	private PMML convertRegression(Rexp.REXP forest){
-		Rexp.REXP leftDaughter = REXPUtil.field(forest, "leftDaughter");
-		Rexp.REXP rightDaughter = REXPUtil.field(forest, "rightDaughter");
-		Rexp.REXP nodepred = REXPUtil.field(forest, "nodepred");
-		Rexp.REXP bestvar = REXPUtil.field(forest, "bestvar");
-		Rexp.REXP xbestsplit = REXPUtil.field(forest, "xbestsplit");
-		Rexp.REXP ncat = REXPUtil.field(forest, "ncat");
-		Rexp.REXP nrnodes = REXPUtil.field(forest, "nrnodes");
-		Rexp.REXP ntree = REXPUtil.field(forest, "ntree");
-		Rexp.REXP xlevels = REXPUtil.field(forest, "xlevels");
+	private List<TreeModel> convertRegression(LazyREXP forest){
+		LazyREXP leftDaughter = REXPUtil.field(forest, "leftDaughter");
+		LazyREXP rightDaughter = REXPUtil.field(forest, "rightDaughter");
+		LazyREXP nodepred = REXPUtil.field(forest, "nodepred");
+		LazyREXP bestvar = REXPUtil.field(forest, "bestvar");
+		LazyREXP xbestsplit = REXPUtil.field(forest, "xbestsplit");
+		Rexp.REXP ncat = (REXPUtil.field(forest, "ncat")).getValue();
+		Rexp.REXP nrnodes = (REXPUtil.field(forest, "nrnodes")).getValue();
+		Rexp.REXP ntree = (REXPUtil.field(forest, "ntree")).getValue();
+		Rexp.REXP xlevels = (REXPUtil.field(forest, "xlevels")).getValue();
 
 		initActiveFields(xlevels, ncat);
 
-		ScoreEncoder<Double> scoreEncoder = new ScoreEncoder<Double>(){
+		final
+		ScoreEncoder<DoubleMatrix> scoreEncoder = new ScoreEncoder<DoubleMatrix>(){
 
 			@Override
-			public String encode(Double key){
-				return formatValue(key);
+			public String encode(DoubleMatrix nodepred, int i){
+				return formatValue(nodepred.get(i));
 			}
 		};
 
-		List<Integer> leftDaughterIndices = getIndices(leftDaughter);
-		List<Integer> rightDaughterIndices = getIndices(rightDaughter);
-		List<Integer> bestvarIndices = getIndices(bestvar);
-
 		int rows = nrnodes.getIntValue(0);
+		final
 		int columns = (int)ntree.getRealValue(0);
 
-		List<TreeModel> treeModels = new ArrayList<TreeModel>();
+		int[] bounds = getTreeBounds(columns);
+
+		this.firstTree = bounds[0];
+
+		final
+		IntMatrix leftDaughterMatrix = new IntMatrix(REXPUtil.getIndices(leftDaughter), rows, columns);
+		final
+		IntMatrix rightDaughterMatrix = new IntMatrix(REXPUtil.getIndices(rightDaughter), rows, columns);
+		final
+		DoubleMatrix nodepredMatrix = new DoubleMatrix(nodepred.getRealValues(), rows, columns);
+		final
+		IntMatrix bestvarMatrix = new IntMatrix(REXPUtil.getIndices(bestvar), rows, columns);
+		final
+		DoubleMatrix xbestsplitMatrix = new DoubleMatrix(xbestsplit.getRealValues(), rows, columns);
+
+		initThresholds(bestvarMatrix, xbestsplitMatrix);
+
+		if(getDeduplicate()){
+			List<TreeStructure> treeStructures = new AbstractList<TreeStructure>(){
+
+				@Override
+				public TreeStructure get(int i){
+					return new TreeStructure(leftDaughterMatrix.getColumn(i), rightDaughterMatrix.getColumn(i), bestvarMatrix.getColumn(i), xbestsplitMatrix.getColumn(i), nodepredMatrix.getColumn(i));
+				}
+
+				@Override
+				public int size(){
+					return columns;
+				}
+			};
+
+			this.multiplicities = countIdenticalTrees(treeStructures.subList(bounds[0], bounds[1]));
+		}
+
+		// Trees are encoded on demand
+		List<TreeModel> treeModels = new AbstractList<TreeModel>(){
 
-		for(int i = 0; i < columns; i++){
-			TreeModel treeModel = encodeTreeModel(
+			@Override
+			public TreeModel get(int i){
+				return encodeTreeModel(
 					MiningFunctionType.REGRESSION,
-					REXPUtil.getColumn(leftDaughterIndices, i, rows, columns),
-					REXPUtil.getColumn(rightDaughterIndices, i, rows, columns),
+					leftDaughterMatrix.getColumn(i),
+					rightDaughterMatrix.getColumn(i),
 					scoreEncoder,
-					REXPUtil.getColumn(nodepred.getRealValueList(), i, rows, columns),
-					REXPUtil.getColumn(bestvarIndices, i, rows, columns),
-					REXPUtil.getColumn(xbestsplit.getRealValueList(), i, rows, columns)
+					nodepredMatrix.getColumn(i),
+					bestvarMatrix.getColumn(i),
+					xbestsplitMatrix.getColumn(i),
+					null
 				);
+			}
 
-			treeModels.add(treeModel);
-		}
+			@Override
+			public int size(){
+				return columns;
+			}
+		};
 
-		return encodePMML(MiningFunctionType.REGRESSION, treeModels);
+		return treeModels.subList(bounds[0], bounds[1]);
 	}
 
-	private PMML convertClassification(Rexp.REXP forest, Rexp.REXP y){
-		Rexp.REXP bestvar = REXPUtil.field(forest, "bestvar");
-		Rexp.REXP treemap = REXPUtil.field(forest, "treemap");
-		Rexp.REXP nodepred = REXPUtil.field(forest, "nodepred");
-		Rexp.REXP xbestsplit = REXPUtil.field(forest, "xbestsplit");
-		Rexp.REXP ncat = REXPUtil.field(forest, "ncat");
-		Rexp.REXP nrnodes = REXPUtil.field(forest, "nrnodes");
-		Rexp.REXP ntree = REXPUtil.field(forest, "ntree");
-		Rexp.REXP xlevels = REXPUtil.field(forest, "xlevels");
+	private List<TreeModel> convertClassification(LazyREXP forest, Rexp.REXP y){
+		LazyREXP bestvar = REXPUtil.field(forest, "bestvar");
+		LazyREXP treemap = REXPUtil.field(forest, "treemap");
+		LazyREXP nodepred = REXPUtil.field(forest, "nodepred");
+		LazyREXP xbestsplit = REXPUtil.field(forest, "xbestsplit");
+		Rexp.REXP ncat = (REXPUtil.field(forest, "ncat")).getValue();
+		Rexp.REXP nrnodes = (REXPUtil.field(forest, "nrnodes")).getValue();
+		Rexp.REXP ntree = (REXPUtil.field(forest, "ntree")).getValue();
+		Rexp.REXP xlevels = (REXPUtil.field(forest, "xlevels")).getValue();
 
 		initPredictedFields(y);
 		initActiveFields(xlevels, ncat);
 
-		ScoreEncoder<Integer> scoreEncoder = new ScoreEncoder<Integer>(){
+		final
+		ScoreEncoder<IntMatrix> scoreEncoder = new ScoreEncoder<IntMatrix>(){
 
 			@Override
-			public String encode(Integer key){
-				Value value = getLevel(key.intValue() - 1);
+			public String encode(IntMatrix nodepred, int i){
+				Value value = getLevel(nodepred.get(i) - 1);
 
 				return value.getValue();
 			}
 		};
 
-		List<Integer> treemapIndices = getIndices(treemap);
-		List<Integer> nodepredIndices = getIndices(nodepred);
-		List<Integer> bestvarIndices = getIndices(bestvar);
-
 		int rows = nrnodes.getIntValue(0);
+		final
 		int columns = (int)ntree.getRealValue(0);
 
-		List<TreeModel> treeModels = new ArrayList<TreeModel>();
+		int[] bounds = getTreeBounds(columns);
+
+		this.firstTree = bounds[0];
+
+		// A three-dimensional array (nrnodes x 2 x ntree), where the left and right daughters of the i-th tree are in columns 2 * i and 2 * i + 1, respectively
+		final
+		IntMatrix treemapMatrix = new IntMatrix(REXPUtil.getIndices(treemap), rows, 2 * columns);
+		final
+		IntMatrix nodepredMatrix = new IntMatrix(REXPUtil.getIndices(nodepred), rows, columns);
+		final
+		IntMatrix bestvarMatrix = new IntMatrix(REXPUtil.getIndices(bestvar), rows, columns);
+		final
+		DoubleMatrix xbestsplitMatrix = new DoubleMatrix(xbestsplit.getRealValues(), rows, columns);
+
+		initThresholds(bestvarMatrix, xbestsplitMatrix);
+
+		if(getDeduplicate()){
+			List<TreeStructure> treeStructures = new AbstractList<TreeStructure>(){
+
+				@Override
+				public TreeStructure get(int i){
+					return new TreeStructure(treemapMatrix.getColumn(2 * i), treemapMatrix.getColumn((2 * i) + 1), bestvarMatrix.getColumn(i), xbestsplitMatrix.getColumn(i), nodepredMatrix.getColumn(i));
+				}
+
+				@Override
+				public int size(){
+					return columns;
+				}
+			};
+
+			this.multiplicities = countIdenticalTrees(treeStructures.subList(bounds[0], bounds[1]));
+		}
+
+		// Trees are encoded on demand
+		List<TreeModel> treeModels = new AbstractList<TreeModel>(){
+
+			@Override
+			public TreeModel get(int i){
+				IntMatrix leftDaughter = treemapMatrix.getColumn(2 * i);
+				IntMatrix rightDaughter = treemapMatrix.getColumn((2 * i) + 1);
+				IntMatrix nodepred = nodepredMatrix.getColumn(i);
+				IntMatrix bestvar = bestvarMatrix.getColumn(i);
+
+				UniformSubtrees uniformSubtrees = null;
 
-		for(int i = 0; i < columns; i++){
-			List<Integer> daughters = REXPUtil.getColumn(treemapIndices, i, 2 * rows, columns);
+				if(getPrune()){
+					uniformSubtrees = new UniformSubtrees(leftDaughter, rightDaughter, bestvar, nodepred);
+				}
 
-			TreeModel treeModel = encodeTreeModel(
+				return encodeTreeModel(
 					MiningFunctionType.CLASSIFICATION,
-					REXPUtil.getColumn(daughters, 0, rows, columns),
-					REXPUtil.getColumn(daughters, 1, rows, columns),
+					leftDaughter,
+					rightDaughter,
 					scoreEncoder,
-					REXPUtil.getColumn(nodepredIndices, i, rows, columns),
-					REXPUtil.getColumn(bestvarIndices, i, rows, columns),
-					REXPUtil.getColumn(xbestsplit.getRealValueList(), i, rows, columns)
+					nodepred,
+					bestvar,
+					xbestsplitMatrix.getColumn(i),
+					uniformSubtrees
 				);
+			}
 
-			treeModels.add(treeModel);
-		}
+			@Override
+			public int size(){
+				return columns;
+			}
+		};
 
-		return encodePMML(MiningFunctionType.CLASSIFICATION, treeModels);
+		return treeModels.subList(bounds[0], bounds[1]);
 	}
 
-	private PMML encodePMML(MiningFunctionType miningFunction, List<TreeModel> treeModels){
-		MultipleModelMethodType multipleModelMethod;
-
-		switch(miningFunction){
-			case REGRESSION:
-				multipleModelMethod = MultipleModelMethodType.AVERAGE;
-				break;
-			case CLASSIFICATION:
-				multipleModelMethod = MultipleModelMethodType.MAJORITY_VOTE;
-				break;
-			default:
-				throw new IllegalArgumentException();
+	/**
+	 * @param begin The 0-based index of the first tree, inclusive.
+	 * @param end The 0-based index of the last tree, exclusive.
+	 *
+	 * @return The split variables of all nodes, except for the nodes that are removed by pruning. Only the nodes of the specified trees are pruned.
+	 */
+	private int[] getSplitVariables(LazyREXP forest, MiningFunctionType miningFunction, int begin, int end){
+		int[] bestvar = REXPUtil.getIndices(REXPUtil.field(forest, "bestvar"));
+
+		if(!getPrune() || !(MiningFunctionType.CLASSIFICATION).equals(miningFunction)){
+			return bestvar;
 		}
 
-		Set<FieldName> forestFields = new LinkedHashSet<FieldName>();
+		Rexp.REXP nrnodes = (REXPUtil.field(forest, "nrnodes")).getValue();
+		Rexp.REXP ntree = (REXPUtil.field(forest, "ntree")).getValue();
 
-		Segmentation segmentation = new Segmentation(multipleModelMethod);
+		int rows = nrnodes.getIntValue(0);
+		int columns = (int)ntree.getRealValue(0);
+
+		IntMatrix treemapMatrix = new IntMatrix(REXPUtil.getIndices(REXPUtil.field(forest, "treemap")), rows, 2 * columns);
+		IntMatrix nodepredMatrix = new IntMatrix(REXPUtil.getIndices(REXPUtil.field(forest, "nodepred")), rows, columns);
+		IntMatrix bestvarMatrix = new IntMatrix(bestvar, rows, columns);
+
+		int[] result = new int[bestvar.length];
+
+		for(int i = begin; i < end; i++){
+			IntMatrix leftDaughter = treemapMatrix.getColumn(2 * i);
+			IntMatrix rightDaughter = treemapMatrix.getColumn((2 * i) + 1);
+			IntMatrix treeBestvar = bestvarMatrix.getColumn(i);
+
+			UniformSubtrees uniformSubtrees = new UniformSubtrees(leftDaughter, rightDaughter, treeBestvar, nodepredMatrix.getColumn(i));
 
-		for(int i = 0; i < treeModels.size(); i++){
-			TreeModel treeModel = treeModels.get(i);
+			// Child nodes follow their parent node, so every node is reached after its parent node
+			boolean[] removed = new boolean[rows];
 
-			Node root = treeModel.getNode();
+			for(int j = 0; j < rows; j++){
+				int var = treeBestvar.get(j);
+				if(var == 0){
+					continue;
+				} // End if
+
+				// A collapsed node keeps its place, but loses its split. All its descendant nodes are removed
+				if(removed[j] || uniformSubtrees.isUniform(j)){
+					removed[leftDaughter.get(j) - 1] = true;
+					removed[rightDaughter.get(j) - 1] = true;
+
+					continue;
+				}
 
-			FieldCollector fieldCollector = new FieldCollector();
-			root.accept(fieldCollector);
+				result[(i * rows) + j] = var;
+			}
+		}
 
-			Set<FieldName> treeFields = fieldCollector.getFields();
+		return result;
+	}
 
-			forestFields.addAll(treeFields);
+	private PMML encodePMML(MiningFunctionType miningFunction, List<TreeModel> treeModels){
+		MultipleModelMethodType multipleModelMethod = getMultipleModelMethod(miningFunction, this.multiplicities != null);
 
-			MiningSchema miningSchema = treeModel.getMiningSchema();
-			miningSchema = miningSchema.withMiningFields(encodeMiningFields(treeFields));
+		Segmentation segmentation = new Segmentation(multipleModelMethod);
 
-			Segment segment = new Segment()
-				.withId(String.valueOf(i + 1))
-				.withPredicate(new True())
-				.withModel(treeModel);
+		Iterable<Segment> segments = iterate(encodeSegments(treeModels));
 
+		for(Segment segment : segments){
 			segmentation = segmentation.withSegments(segment);
 		}
 
+		// All trees have been encoded
+		Set<FieldName> forestFields = getFields(this.fieldUsage);
+
+		Metrics.Timer timer = startTimer("encodeDataDictionary");
+
 		DataDictionary dataDictionary = encodeDataDictionary(forestFields);
 
 		MiningSchema miningSchema = encodeMiningSchema(forestFields);
 
+		stopTimer(timer);
+
 		MiningModel miningModel = new MiningModel(miningSchema, miningFunction)
 			.withSegmentation(segmentation);
 
@@ -305,6 +647,110 @@ public class RandomForestConverter extends Converter {
 		return pmml;
 	}
 
+	private List<Segment> encodeSegments(final List<TreeModel> treeModels){
+		final
+		int[] multiplicities = this.multiplicities;
+
+		if(multiplicities != null){
+			int[] indices = new int[multiplicities.length];
+
+			int count = 0;
+
+			for(int i = 0; i < multiplicities.length; i++){
+
+				if(multiplicities[i] > 0){
+					indices[count++] = i;
+				}
+			}
+
+			final
+			int[] uniqueIndices = Arrays.copyOf(indices, count);
+
+			// Every distinct tree is represented by its first occurrence, and weighted by the number of its occurrences
+			List<Segment> segments = new AbstractList<Segment>(){
+
+				@Override
+				public Segment get(int k){
+					int i = uniqueIndices[k];
+
+					Segment segment = encodeSegment(i, treeModels.get(i))
+						.withWeight((double)multiplicities[i]);
+
+					return segment;
+				}
+
+				@Override
+				public int size(){
+					return uniqueIndices.length;
+				}
+			};
+
+			return segments;
+		}
+
+		List<Segment> segments = new AbstractList<Segment>(){
+
+			@Override
+			public Segment get(int i){
+				return encodeSegment(i, treeModels.get(i));
+			}
+
+			@Override
+			public int size(){
+				return treeModels.size();
+			}
+		};
+
+		return segments;
+	}
+
+	private Segment encodeSegment(int i, TreeModel treeModel){
+		Segment segment = new Segment()
+			.withId(String.valueOf(this.firstTree + i + 1))
+			.withPredicate(new True())
+			.withModel(treeModel);
+
+		return segment;
+	}
+
+	/**
+	 * Segments are encoded on the executor, if there is one.
+	 * In any case, they are returned in their original order.
+	 */
+	private <E> Iterable<E> iterate(List<E> list){
+		ExecutorService executorService = getExecutorService();
+
+		if(executorService == null){
+			return list;
+		}
+
+		return new ParallelIterable<E>(list, executorService, RandomForestConverter.WINDOW_SIZE);
+	}
+
+	/**
+	 * @return The 0-based indices of the first tree (inclusive) and the last tree (exclusive) to encode.
+	 */
+	private int[] getTreeBounds(int ntree){
+		Range<Integer> treeRange = getTreeRange();
+
+		if(treeRange == null){
+			return new int[]{0, ntree};
+		}
+
+		Range<Integer> trees = Range.closed(1, ntree);
+
+		if(!treeRange.isConnected(trees)){
+			throw new IllegalArgumentException("Tree range does not contain any of trees 1 to " + ntree);
+		}
+
+		ContiguousSet<Integer> treeNumbers = ContiguousSet.create(treeRange.intersection(trees), DiscreteDomain.integers());
+		if(treeNumbers.isEmpty()){
+			throw new IllegalArgumentException("Tree range does not contain any of trees 1 to " + ntree);
+		}
+
+		return new int[]{treeNumbers.first() - 1, treeNumbers.last()};
+	}
+
 	private void initFormulaFields(Rexp.REXP terms){
 		Rexp.REXP dataClasses = REXPUtil.attribute(terms, "dataClasses");
 
@@ -399,34 +845,108 @@ public class RandomForestConverter extends Converter {
 		}
 	}
 
-	private void initActiveFields(Rexp.REXP xlevels, Rexp.REXP ncat){
+	private void initDataFields(FieldUsage fieldUsage){
 
-		for(int i = 0; i < ncat.getIntValueCount(); i++){
-			DataField dataField = this.dataFields.get(i + 1);
+		if(this.declaredDataTypes == null){
+			DataType[] declaredDataTypes = new DataType[this.dataFields.size()];
 
-			boolean categorical = (ncat.getIntValue(i) > 1);
-			if(!categorical){
-				continue;
+			for(int var = 0; var < declaredDataTypes.length; var++){
+				declaredDataTypes[var] = (this.dataFields.get(var)).getDataType();
 			}
 
-			List<Value> values = dataField.getValues();
+			this.declaredDataTypes = declaredDataTypes;
+		}
 
-			Rexp.REXP xvalues = xlevels.getRexpValue(i);
+		BitSet fields = fieldUsage.getFields();
 
-			for(int j = 0; j < xvalues.getStringValueCount(); j++){
-				STRING xvalue = xvalues.getStringValue(j);
+		// Unused fields are left as they are
+		for(int var = fields.nextSetBit(0); var > -1; var = fields.nextSetBit(var + 1)){
+			DataField dataField = this.dataFields.get(var);
 
-				values.add(new Value(xvalue.getStrval()));
-			}
+			dataField = initDataField(dataField, fieldUsage.getDataType(var, getDeclaredDataType(var)));
 		}
 	}
 
-	private void initPredictedFields(Rexp.REXP y){
-		DataField dataField = this.dataFields.get(0);
+	/**
+	 * Split predicates are encoded using declared data types, so that they do not depend on whether field types have been refined before trees are encoded (streaming conversion) or after that.
+	 *
+	 * @return The data type of the field, as declared by R.
+	 */
+	private DataType getDeclaredDataType(int var){
+		DataType[] declaredDataTypes = this.declaredDataTypes;
 
-		List<Value> values = dataField.getValues();
+		if(declaredDataTypes != null){
+			return declaredDataTypes[var];
+		}
 
-		Rexp.REXP levels = REXPUtil.attribute(y, "levels");
+		return (this.dataFields.get(var)).getDataType();
+	}
+
+	private Set<FieldName> getFields(FieldUsage fieldUsage){
+		Set<FieldName> result = new LinkedHashSet<FieldName>();
+
+		BitSet fields = fieldUsage.getFields();
+
+		for(int var = fields.nextSetBit(0); var > -1; var = fields.nextSetBit(var + 1)){
+			DataField dataField = this.dataFields.get(var);
+
+			result.add(dataField.getName());
+		}
+
+		return result;
+	}
+
+	private void initActiveFields(Rexp.REXP xlevels, Rexp.REXP ncat){
+
+		for(int i = 0; i < ncat.getIntValueCount(); i++){
+			DataField dataField = this.dataFields.get(i + 1);
+
+			boolean categorical = (ncat.getIntValue(i) > 1);
+			if(!categorical){
+				continue;
+			}
+
+			List<Value> values = dataField.getValues();
+
+			Rexp.REXP xvalues = xlevels.getRexpValue(i);
+
+			for(int j = 0; j < xvalues.getStringValueCount(); j++){
+				STRING xvalue = xvalues.getStringValue(j);
+
+				values.add(new Value(xvalue.getStrval()));
+			}
+		}
+
+		List<String[]> levelTokens = new ArrayList<String[]>(this.dataFields.size());
+
+		for(DataField dataField : this.dataFields){
+			List<Value> values = dataField.getValues();
+
+			String[] tokens = new String[values.size()];
+
+			for(int i = 0; i < tokens.length; i++){
+				Value value = values.get(i);
+
+				String element = value.getValue();
+				if(element.indexOf(' ') > -1){
+					element = ("\"" + element + "\"");
+				}
+
+				tokens[i] = element;
+			}
+
+			levelTokens.add(tokens);
+		}
+
+		this.levelTokens = levelTokens;
+	}
+
+	private void initPredictedFields(Rexp.REXP y){
+		DataField dataField = this.dataFields.get(0);
+
+		List<Value> values = dataField.getValues();
+
+		Rexp.REXP levels = REXPUtil.attribute(y, "levels");
 
 		for(int i = 0; i < levels.getStringValueCount(); i++){
 			STRING level = levels.getStringValue(i);
@@ -511,98 +1031,201 @@ public class RandomForestConverter extends Converter {
 		return miningFields;
 	}
 
-	private <P extends Number> TreeModel encodeTreeModel(MiningFunctionType miningFunction, List<Integer> leftDaughter, List<Integer> rightDaughter, ScoreEncoder<P> scoreEncoder, List<P> nodepred, List<Integer> bestvar, List<Double> xbestsplit){
+	/**
+	 * @param uniformSubtrees Subtrees that should be collapsed into leaf nodes, or <code>null</code>.
+	 */
+	private <M extends Matrix> TreeModel encodeTreeModel(MiningFunctionType miningFunction, IntMatrix leftDaughter, IntMatrix rightDaughter, ScoreEncoder<M> scoreEncoder, M nodepred, IntMatrix bestvar, DoubleMatrix xbestsplit, UniformSubtrees uniformSubtrees){
+		checkCancelled();
+
 		Node root = new Node()
-			.withId("1")
 			.withPredicate(new True());
 
-		encodeNode(root, 0, leftDaughter, rightDaughter, bestvar, xbestsplit, scoreEncoder, nodepred);
+		if(this.nodeIds){
+			root.setId("1");
+		} else
+
+		{
+			this.savedBytes.addAndGet(getIdChars(1));
+		}
+
+		Metrics.Timer timer = startTimer("encodeTree");
+
+		FieldUsage treeFieldUsage = new FieldUsage();
 
-		TreeModel treeModel = new TreeModel(new MiningSchema(), root, miningFunction)
+		int nodes = encodeNode(root, 0, leftDaughter, rightDaughter, bestvar, xbestsplit, scoreEncoder, nodepred, uniformSubtrees, treeFieldUsage);
+
+		MiningSchema miningSchema = new MiningSchema()
+			.withMiningFields(encodeMiningFields(getFields(treeFieldUsage)));
+
+		long time = stopTimer(timer);
+
+		Metrics metrics = getMetrics();
+		if(metrics != null){
+			metrics.recordTree(time, nodes);
+		}
+
+		// Trees may be encoded concurrently
+		synchronized(this.fieldUsage){
+			this.fieldUsage.addAll(treeFieldUsage);
+		}
+
+		updateProgress(nodes);
+
+		TreeModel treeModel = new TreeModel(miningSchema, root, miningFunction)
 			.withSplitCharacteristic(TreeModel.SplitCharacteristic.BINARY_SPLIT);
 
 		return treeModel;
 	}
 
-	private <P extends Number> void encodeNode(Node node, int i, List<Integer> leftDaughter, List<Integer> rightDaughter, List<Integer> bestvar, List<Double> xbestsplit, ScoreEncoder<P> scoreEncoder, List<P> nodepred){
-		Predicate leftPredicate = null;
-		Predicate rightPredicate = null;
+	/**
+	 * Encodes the subtree below the root node.
+	 *
+	 * The tree is walked depth-first using an explicit work stack (rather than recursion), so that the depth of the tree is not limited by the size of the thread stack.
+	 * Child nodes are attached to their parent node when the parent node is visited.
+	 * The split variables of the encoded nodes are recorded in the field usage.
+	 *
+	 * @return The number of nodes in the subtree, including the root node.
+	 */
+	private <M extends Matrix> int encodeNode(Node root, int index, IntMatrix leftDaughter, IntMatrix rightDaughter, IntMatrix bestvar, DoubleMatrix xbestsplit, ScoreEncoder<M> scoreEncoder, M nodepred, UniformSubtrees uniformSubtrees, FieldUsage fieldUsage){
+		int[] indexStack = new int[16];
+		Node[] nodeStack = new Node[16];
 
-		Integer var = bestvar.get(i);
-		if(var != 0){
-			DataField dataField = this.dataFields.get(var);
+		int size = 0;
 
-			Double split = xbestsplit.get(i);
+		indexStack[size] = index;
+		nodeStack[size] = root;
+		size++;
 
-			PredicateKey key = new PredicateKey(dataField, split);
+		int count = 0;
 
-			DataType dataType = dataField.getDataType();
-			switch(dataType){
-				case STRING:
-					leftPredicate = this.leftSimpleSetPredicates.getUnchecked(key);
-					rightPredicate = this.rightSimpleSetPredicates.getUnchecked(key);
-					break;
-				case DOUBLE:
-				case BOOLEAN:
-					leftPredicate = this.leftSimplePredicates.getUnchecked(key);
-					rightPredicate = this.rightSimplePredicates.getUnchecked(key);
-					break;
-				default:
-					throw new IllegalArgumentException();
+		int prunedCount = 0;
+
+		long savedBytes = 0;
+
+		while(size > 0){
+			size--;
+
+			int i = indexStack[size];
+			Node node = nodeStack[size];
+
+			nodeStack[size] = null;
+
+			// Every node can be visited at most once
+			if(++count > leftDaughter.size()){
+				throw new IllegalArgumentException();
 			}
-		} else
 
-		{
-			P prediction = nodepred.get(i);
+			Predicate leftPredicate = null;
+			Predicate rightPredicate = null;
 
-			node = node.withScore(scoreEncoder.encode(prediction));
-		}
+			int var = bestvar.get(i);
 
-		Integer left = leftDaughter.get(i);
-		if(left != 0){
-			Node leftChild = new Node()
-				.withId(String.valueOf(left))
-				.withPredicate(leftPredicate);
+			// Replace the subtree with its representative leaf node
+			if(var != 0 && uniformSubtrees != null && uniformSubtrees.isUniform(i)){
+				node = node.withScore(scoreEncoder.encode(nodepred, uniformSubtrees.getLeaf(i)));
 
-			encodeNode(leftChild, left - 1, leftDaughter, rightDaughter, bestvar, xbestsplit, scoreEncoder, nodepred);
+				prunedCount += (uniformSubtrees.getSize(i) - 1);
 
-			node = node.withNodes(leftChild);
-		}
+				continue;
+			} // End if
+
+			if(var != 0){
+				double split = xbestsplit.get(i);
 
-		Integer right = rightDaughter.get(i);
-		if(right != 0){
-			Node rightChild = new Node()
-				.withId(String.valueOf(right))
-				.withPredicate(rightPredicate);
+				fieldUsage.add(var, getDeclaredDataType(var), split);
 
-			encodeNode(rightChild, right - 1, leftDaughter, rightDaughter, bestvar, xbestsplit, scoreEncoder, nodepred);
+				leftPredicate = this.predicates.get(var, split, true);
+				rightPredicate = this.predicates.get(var, split, false);
 
-			node = node.withNodes(rightChild);
+				if(this.thresholds != null){
+					savedBytes += (2 * this.thresholds.getSavedChars(var, split));
+				}
+			} else
+
+			{
+				node = node.withScore(scoreEncoder.encode(nodepred, i));
+			}
+
+			if(size + 2 > indexStack.length){
+				indexStack = Arrays.copyOf(indexStack, 2 * indexStack.length);
+				nodeStack = Arrays.copyOf(nodeStack, 2 * nodeStack.length);
+			}
+
+			int left = leftDaughter.get(i);
+			if(left != 0){
+				Node leftChild = new Node()
+					.withPredicate(leftPredicate);
+
+				if(this.nodeIds){
+					leftChild.setId(String.valueOf(left));
+				} else
+
+				{
+					savedBytes += getIdChars(left);
+				}
+
+				node = node.withNodes(leftChild);
+
+				indexStack[size] = (left - 1);
+				nodeStack[size] = leftChild;
+				size++;
+			}
+
+			int right = rightDaughter.get(i);
+			if(right != 0){
+				Node rightChild = new Node()
+					.withPredicate(rightPredicate);
+
+				if(this.nodeIds){
+					rightChild.setId(String.valueOf(right));
+				} else
+
+				{
+					savedBytes += getIdChars(right);
+				}
+
+				node = node.withNodes(rightChild);
+
+				indexStack[size] = (right - 1);
+				nodeStack[size] = rightChild;
+				size++;
+			}
 		}
+
+		if(prunedCount > 0){
+			this.prunedNodes.addAndGet(prunedCount);
+		} // End if
+
+		if(savedBytes > 0){
+			this.savedBytes.addAndGet(savedBytes);
+		}
+
+		return count;
 	}
 
-	private SimpleSetPredicate encodeSimpleSetPredicate(DataField dataField, Integer split, boolean leftDaughter){
+	private SimpleSetPredicate encodeSimpleSetPredicate(int var, DataField dataField, long mask, boolean leftDaughter){
 		SimpleSetPredicate simpleSetPredicate = new SimpleSetPredicate()
 			.withField(dataField.getName())
 			.withBooleanOperator(SimpleSetPredicate.BooleanOperator.IS_IN)
-			.withArray(encodeArray(dataField, split, leftDaughter));
+			.withArray(encodeArray(this.levelTokens.get(var), mask, leftDaughter));
 
 		return simpleSetPredicate;
 	}
 
-	private Array encodeArray(DataField dataField, Integer split, boolean leftDaughter){
-		String value = formatArrayValue(dataField.getValues(), split, leftDaughter);
+	private Array encodeArray(String[] tokens, long mask, boolean leftDaughter){
+		String value = formatArrayValue(tokens, mask, leftDaughter);
 
 		Array array = new Array(value, Array.Type.STRING);
 
 		return array;
 	}
 
-	private SimplePredicate encodeSimplePredicate(DataField dataField, Double split, boolean leftDaughter){
+	/**
+	 * @param dataType The data type of the field, as declared by R.
+	 */
+	private SimplePredicate encodeSimplePredicate(DataField dataField, DataType dataType, double split, boolean leftDaughter){
 		SimplePredicate simplePredicate;
 
-		DataType dataType = dataField.getDataType();
-
 		if((DataType.DOUBLE).equals(dataType)){
 			simplePredicate = new SimplePredicate()
 				.withField(dataField.getName())
@@ -614,7 +1237,7 @@ public class RandomForestConverter extends Converter {
 			simplePredicate = new SimplePredicate()
 				.withField(dataField.getName())
 				.withOperator(SimplePredicate.Operator.EQUAL)
-				.withValue(split.doubleValue() <= 0.5d ? Boolean.toString(!leftDaughter) : Boolean.toString(leftDaughter));
+				.withValue(split <= 0.5d ? Boolean.toString(!leftDaughter) : Boolean.toString(leftDaughter));
 		} else
 
 		{
@@ -632,245 +1255,705 @@ public class RandomForestConverter extends Converter {
 		return values.get(i);
 	}
 
+	/**
+	 * @param mask A bitmask, where the i-th bit is set if the i-th level is sent to the left.
+	 */
 	static
-	private String formatArrayValue(List<Value> values, Integer split, boolean leftDaughter){
-		StringBuilder sb = new StringBuilder();
+	private String formatArrayValue(String[] tokens, long mask, boolean leftDaughter){
+		StringBuilder sb = new StringBuilder(tokens.length * 8);
 
-		String sep = "";
+		boolean first = true;
 
-		String string = performBinaryExpansion(split);
+		for(int i = 0; i < tokens.length; i++){
+			// Levels beyond the width of the bitmask are sent to the right
+			boolean left = (i < 64) && (((mask >>> i) & 1L) != 0);
 
-		for(int i = 0; i < values.size(); i++){
-			Value value = values.get(i);
+			if(left == leftDaughter){
 
-			boolean append;
+				if(!first){
+					sb.append(' ');
+				}
 
-			// Send "true" categories to the left
-			if(leftDaughter){
-				append = ((i < string.length()) && (string.charAt(i) == '1'));
-			} else
+				sb.append(tokens[i]);
 
-			// Send all other categories to the right
-			{
-				append = ((i >= string.length()) || (string.charAt(i) == '0'));
-			} // End if
+				first = false;
+			}
+		}
 
-			if(append){
-				sb.append(sep);
+		return sb.toString();
+	}
 
-				String element = value.getValue();
-				if(element.indexOf(' ') > -1){
-					sb.append('\"').append(element).append('\"');
-				} else
+	private void initThresholds(IntMatrix bestvar, DoubleMatrix xbestsplit){
 
-				{
-					sb.append(element);
-				}
+		if(this.thresholdPrecision == RandomForestConverter.PRECISION_FULL){
+			return;
+		}
 
-				sep = " ";
-			}
+		Metrics.Timer timer = startTimer("roundThresholds");
+
+		boolean[] continuous = new boolean[this.dataFields.size()];
+
+		for(int var = 1; var < continuous.length; var++){
+			continuous[var] = (DataType.DOUBLE).equals(getDeclaredDataType(var));
 		}
 
-		return sb.toString();
+		this.thresholds = new Thresholds(bestvar, xbestsplit, continuous, this.thresholdPrecision);
+
+		stopTimer(timer);
 	}
 
+	/**
+	 * @return The length of the <code>id</code> attribute (including the leading space).
+	 */
 	static
-	private String performBinaryExpansion(int value){
+	private int getIdChars(int id){
+		int result = (" id=\"\"").length();
 
-		if(value <= 0){
-			throw new IllegalArgumentException();
+		do {
+			result++;
+
+			id /= 10;
+		} while(id > 0);
+
+		return result;
+	}
+
+	/**
+	 * R encodes the categorical split of a factor with up to 53 levels as an integer-valued real number.
+	 *
+	 * @return The split as a bitmask.
+	 */
+	static
+	long asMask(double split){
+
+		if(!DoubleMath.isMathematicalInteger(split) || split < 1d || split > RandomForestConverter.MASK_LIMIT){
+			throw new IllegalArgumentException("Invalid categorical split " + split);
 		}
 
-		StringBuilder sb = new StringBuilder();
-		sb.append(Integer.toBinaryString(value));
+		return (long)split;
+	}
 
-		// Start counting from the rightmost bit
-		sb = sb.reverse();
+	private void recordCacheStats(){
+		Metrics metrics = getMetrics();
 
-		return sb.toString();
+		if(metrics == null){
+			return;
+		}
+
+		PredicateTable predicates = this.predicates;
+
+		metrics.setValue("predicateCacheHits", predicates.getHitCount());
+		metrics.setValue("predicateCacheMisses", predicates.getMissCount());
+		metrics.setValue("predicateCacheHitRate", predicates.getHitRate());
+		metrics.setValue("predicateCacheSize", predicates.size());
+
+		if(getPrune()){
+			metrics.setValue("prunedNodes", getPrunedNodes());
+		} // End if
+
+		if(getDeduplicate()){
+			metrics.setValue("duplicateTrees", getDuplicateTrees());
+		} // End if
+
+		if(!getNodeIds() || this.thresholds != null){
+			metrics.setValue("compactSavedBytes", getSavedBytes());
+		}
+	}
+
+	public ExecutorService getExecutorService(){
+		return this.executorService;
+	}
+
+	/**
+	 * @param executorService An executor for encoding trees in parallel, or <code>null</code>.
+	 */
+	public void setExecutorService(ExecutorService executorService){
+		this.executorService = executorService;
+	}
+
+	public boolean getDeduplicate(){
+		return this.deduplicate;
+	}
+
+	/**
+	 * @param deduplicate <code>true</code> if identical trees should be encoded once, and weighted by the number of their occurrences, <code>false</code> otherwise.
+	 */
+	public void setDeduplicate(boolean deduplicate){
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * @return The number of trees that have been left out as duplicates of other trees.
+	 */
+	public int getDuplicateTrees(){
+		int[] multiplicities = this.multiplicities;
+
+		if(multiplicities == null){
+			return 0;
+		}
+
+		int result = 0;
+
+		for(int multiplicity : multiplicities){
+
+			if(multiplicity == 0){
+				result++;
+			}
+		}
+
+		return result;
+	}
+
+	public boolean getPrune(){
+		return this.prune;
+	}
+
+	/**
+	 * @param prune <code>true</code> if subtrees whose leaf nodes all predict the same class should be collapsed into a single leaf node, <code>false</code> otherwise. Applies to classification forests.
+	 */
+	public void setPrune(boolean prune){
+		this.prune = prune;
+	}
+
+	public Range<Integer> getTreeRange(){
+		return this.treeRange;
+	}
+
+	/**
+	 * @param treeRange The 1-based numbers of trees to encode, or <code>null</code> for all trees.
+	 * Segment identifiers are tree numbers, so the outputs of disjoint ranges can be merged into a complete model.
+	 */
+	public void setTreeRange(Range<Integer> treeRange){
+		this.treeRange = treeRange;
+	}
+
+	/**
+	 * @return The number of nodes that have been removed by pruning.
+	 */
+	public long getPrunedNodes(){
+		return this.prunedNodes.get();
+	}
+
+	public boolean getSpill(){
+		return this.spill;
+	}
+
+	/**
+	 * @param spill <code>true</code> if the streaming conversion should write Segment elements to a temporary file, and copy them into the PMML document after all trees have been encoded, <code>false</code> otherwise.
+	 * Unlike the upfront scan of the forest, field types are then determined exactly as in the in-memory conversion.
+	 */
+	public void setSpill(boolean spill){
+		this.spill = spill;
+	}
+
+	public boolean getNodeIds(){
+		return this.nodeIds;
+	}
+
+	/**
+	 * @param nodeIds <code>true</code> if Node elements should be identified by their 1-based row numbers, <code>false</code> otherwise. Node identifiers are informative only.
+	 */
+	public void setNodeIds(boolean nodeIds){
+		this.nodeIds = nodeIds;
+	}
+
+	public int getThresholdPrecision(){
+		return this.thresholdPrecision;
+	}
+
+	/**
+	 * @param thresholdPrecision The number of significant digits of split thresholds, {@link #PRECISION_FLOAT} for single precision, or {@link #PRECISION_FULL} for double precision.
+	 * A threshold is only rounded up, and never up to the next larger threshold of the same field, so that all split values of the forest are sent to the same side as before.
+	 */
+	public void setThresholdPrecision(int thresholdPrecision){
+
+		if(thresholdPrecision < RandomForestConverter.PRECISION_FLOAT || thresholdPrecision > 17){
+			throw new IllegalArgumentException("Invalid threshold precision " + thresholdPrecision);
+		}
+
+		this.thresholdPrecision = thresholdPrecision;
+	}
+
+	/**
+	 * @return The number of PMML characters that have been saved by leaving out node identifiers and by rounding thresholds.
+	 */
+	public long getSavedBytes(){
+		return this.savedBytes.get();
 	}
 
 	static
-	private List<Integer> getIndices(Rexp.REXP rexp){
-		List<Integer> intValues = rexp.getIntValueList();
-		if(intValues.size() > 0){
-			return intValues;
+	MiningFunctionType getMiningFunction(LazyREXP randomForest){
+		Rexp.REXP type = (REXPUtil.field(randomForest, "type")).getValue();
+
+		STRING typeValue = type.getStringValue(0);
+
+		if("regression".equals(typeValue.getStrval())){
+			return MiningFunctionType.REGRESSION;
+		} else
+
+		if("classification".equals(typeValue.getStrval())){
+			return MiningFunctionType.CLASSIFICATION;
 		}
 
-		List<Double> realValues = rexp.getRealValueList();
-		if(realValues.size() > 0){
-			Function<Number, Integer> function = new Function<Number, Integer>(){
+		throw new IllegalArgumentException();
+	}
 
-				@Override
-				public Integer apply(Number number){
-					return asInteger(number);
+	static
+	private MultipleModelMethodType getMultipleModelMethod(MiningFunctionType miningFunction, boolean weighted){
+
+		switch(miningFunction){
+			case REGRESSION:
+				return (weighted ? MultipleModelMethodType.WEIGHTED_AVERAGE : MultipleModelMethodType.AVERAGE);
+			case CLASSIFICATION:
+				return (weighted ? MultipleModelMethodType.WEIGHTED_MAJORITY_VOTE : MultipleModelMethodType.MAJORITY_VOTE);
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Groups trees by their structural hash code, and compares trees with colliding hash codes in full.
+	 *
+	 * @return For every tree, the number of identical trees if it is the first of them, or <code>0</code> otherwise.
+	 */
+	static
+	private int[] countIdenticalTrees(List<TreeStructure> treeStructures){
+		int[] result = new int[treeStructures.size()];
+
+		Map<Integer, List<Integer>> firstIndices = new HashMap<Integer, List<Integer>>();
+
+		// The signatures of first occurrences
+		long[][] signatures = new long[result.length][];
+
+		for(int i = 0; i < result.length; i++){
+			TreeStructure treeStructure = treeStructures.get(i);
+
+			long[] signature = treeStructure.getSignature();
+
+			Integer hashCode = Arrays.hashCode(signature);
+
+			List<Integer> indices = firstIndices.get(hashCode);
+			if(indices == null){
+				indices = new ArrayList<Integer>(1);
+
+				firstIndices.put(hashCode, indices);
+			}
+
+			boolean duplicate = false;
+
+			for(Integer index : indices){
+
+				if(Arrays.equals(signatures[index], signature)){
+					result[index]++;
+
+					duplicate = true;
+
+					break;
 				}
-			};
+			}
+
+			if(!duplicate){
+				indices.add(i);
 
-			return Lists.transform(realValues, function);
+				signatures[i] = signature;
+				result[i] = 1;
+			}
 		}
 
-		throw new IllegalArgumentException();
+		return result;
 	}
 
 	static
-	private interface ScoreEncoder<K extends Number> {
+	private interface ScoreEncoder<M extends Matrix> {
 
-		String encode(K key);
+		String encode(M nodepred, int i);
 	}
 
+	/**
+	 * The structure of a tree, as seen by the tree encoder.
+	 */
 	static
-	private class PredicateKey {
+	private class TreeStructure {
+
+		private IntMatrix leftDaughter = null;
+
+		private IntMatrix rightDaughter = null;
 
-		private DataField dataField = null;
+		private IntMatrix bestvar = null;
 
-		private Number split = null;
+		private DoubleMatrix xbestsplit = null;
 
+		private Matrix nodepred = null;
 
-		private PredicateKey(DataField dataField, Number split){
-			setDataField(dataField);
-			setSplit(split);
+
+		private TreeStructure(IntMatrix leftDaughter, IntMatrix rightDaughter, IntMatrix bestvar, DoubleMatrix xbestsplit, Matrix nodepred){
+			this.leftDaughter = leftDaughter;
+			this.rightDaughter = rightDaughter;
+			this.bestvar = bestvar;
+			this.xbestsplit = xbestsplit;
+			this.nodepred = nodepred;
 		}
 
-		@Override
-		public int hashCode(){
-			return getDataField().hashCode() ^ getSplit().hashCode();
+		/**
+		 * Lists the reachable nodes in pre-order.
+		 * An internal node is represented by its split variable and split value, and a leaf node by zero and its prediction.
+		 * Node numbering is irrelevant, so two trees are identical if and only if their signatures are equal.
+		 *
+		 * @return Two elements per node.
+		 */
+		public long[] getSignature(){
+			int size = this.bestvar.size();
+
+			long[] result = new long[16];
+
+			int count = 0;
+
+			int[] stack = new int[16];
+
+			int stackSize = 0;
+
+			stack[stackSize++] = 0;
+
+			while(stackSize > 0){
+				int i = stack[--stackSize];
+
+				// Every node can be visited at most once
+				if(count / 2 >= size){
+					throw new IllegalArgumentException();
+				}
+
+				result = Longs.ensureCapacity(result, count + 2, count);
+
+				int var = this.bestvar.get(i);
+				if(var != 0){
+					result[count++] = var;
+					result[count++] = Double.doubleToLongBits(this.xbestsplit.get(i));
+				} else
+
+				{
+					result[count++] = 0;
+					result[count++] = getPrediction(i);
+				}
+
+				stack = Ints.ensureCapacity(stack, stackSize + 2, stackSize);
+
+				int right = this.rightDaughter.get(i);
+				if(right != 0){
+					stack[stackSize++] = (right - 1);
+				}
+
+				int left = this.leftDaughter.get(i);
+				if(left != 0){
+					stack[stackSize++] = (left - 1);
+				}
+			}
+
+			return Arrays.copyOf(result, count);
 		}
 
-		@Override
-		public boolean equals(Object object){
+		private long getPrediction(int i){
+			Matrix nodepred = this.nodepred;
 
-			if(object instanceof PredicateKey){
-				PredicateKey that = (PredicateKey)object;
+			if(nodepred instanceof IntMatrix){
+				return ((IntMatrix)nodepred).get(i);
+			} else
 
-				return (this.getDataField()).equals(that.getDataField()) && (this.getSplit()).equals(that.getSplit());
+			if(nodepred instanceof DoubleMatrix){
+				return Double.doubleToLongBits(((DoubleMatrix)nodepred).get(i));
 			}
 
-			return false;
+			throw new IllegalArgumentException();
 		}
+	}
+
+	/**
+	 * Subtrees whose leaf nodes all predict the same class.
+	 */
+	static
+	private class UniformSubtrees {
+
+		private int[] leaves = null;
+
+		private int[] sizes = null;
 
-		public DataField getDataField(){
-			return this.dataField;
+
+		private UniformSubtrees(IntMatrix leftDaughter, IntMatrix rightDaughter, IntMatrix bestvar, IntMatrix nodepred){
+			int size = bestvar.size();
+
+			this.leaves = new int[size];
+			this.sizes = new int[size];
+
+			// Child nodes follow their parent node, so every node is resolved after its child nodes
+			for(int i = size - 1; i > -1; i--){
+				int var = bestvar.get(i);
+
+				if(var == 0){
+					this.leaves[i] = i;
+					this.sizes[i] = 1;
+
+					continue;
+				}
+
+				int left = (leftDaughter.get(i) - 1);
+				int right = (rightDaughter.get(i) - 1);
+
+				if(left <= i || right <= i || left >= size || right >= size){
+					throw new IllegalArgumentException();
+				}
+
+				int leftLeaf = this.leaves[left];
+				int rightLeaf = this.leaves[right];
+
+				boolean uniform = (leftLeaf > -1 && rightLeaf > -1) && (nodepred.get(leftLeaf) == nodepred.get(rightLeaf));
+
+				this.leaves[i] = (uniform ? leftLeaf : -1);
+				this.sizes[i] = 1 + this.sizes[left] + this.sizes[right];
+			}
 		}
 
-		private void setDataField(DataField dataField){
-			this.dataField = dataField;
+		public boolean isUniform(int i){
+			return (this.leaves[i] > -1);
 		}
 
-		public Number getSplit(){
-			return this.split;
+		/**
+		 * @return A leaf node that represents the subtree.
+		 */
+		public int getLeaf(int i){
+			return this.leaves[i];
 		}
 
-		private void setSplit(Number split){
-			this.split = split;
+		/**
+		 * @return The number of nodes in the subtree, including the root node.
+		 */
+		public int getSize(int i){
+			return this.sizes[i];
 		}
 	}
 
+	/**
+	 * The split variables of a tree or a forest, and the kinds of splits that they are used in.
+	 */
 	static
-	private class FieldCollector extends AbstractVisitor {
+	private class FieldUsage {
 
-		private Set<FieldName> fields = new LinkedHashSet<FieldName>();
+		private BitSet fields = new BitSet();
 
+		/**
+		 * Continuous fields that are split at some other value than <code>0.5</code>.
+		 */
+		private BitSet nonBinaryFields = new BitSet();
 
-		@Override
-		public VisitorAction visit(SimpleSetPredicate simpleSetPredicate){
-			this.fields.add(simpleSetPredicate.getField());
 
-			return super.visit(simpleSetPredicate);
-		}
+		public void add(int var, DataType dataType, double split){
+			this.fields.set(var);
 
-		@Override
-		public VisitorAction visit(SimplePredicate simplePredicate){
-			this.fields.add(simplePredicate.getField());
+			if((DataType.DOUBLE).equals(dataType) && split != 0.5d){
+				this.nonBinaryFields.set(var);
+			}
+		}
 
-			return super.visit(simplePredicate);
+		public void addAll(FieldUsage fieldUsage){
+			this.fields.or(fieldUsage.fields);
+			this.nonBinaryFields.or(fieldUsage.nonBinaryFields);
 		}
 
-		public Set<FieldName> getFields(){
+		public BitSet getFields(){
 			return this.fields;
 		}
+
+		/**
+		 * A continuous field that is always split at <code>0.5</code> is a binary indicator, and is treated as a boolean field.
+		 *
+		 * @param dataType The data type of the field, as declared by R.
+		 */
+		public DataType getDataType(int var, DataType dataType){
+
+			switch(dataType){
+				case STRING:
+				case BOOLEAN:
+					return dataType;
+				case DOUBLE:
+					return (this.nonBinaryFields.get(var) ? DataType.DOUBLE : DataType.BOOLEAN);
+				default:
+					throw new IllegalArgumentException();
+			}
+		}
 	}
 
+	/**
+	 * The distinct split thresholds of continuous fields, together with their rounded values.
+	 */
 	static
-	private class FieldTypeAnalyzer extends AbstractVisitor {
+	private class Thresholds {
 
-		private Map<FieldName, DataType> fieldDataTypes = new LinkedHashMap<FieldName, DataType>();
+		private double[][] values = null;
 
+		private double[][] roundedValues = null;
 
-		@Override
-		public VisitorAction visit(SimpleSetPredicate simpleSetPredicate){
-			FieldName field = simpleSetPredicate.getField();
+		private int[][] savedChars = null;
 
-			addDataType(field, DataType.STRING);
 
-			return super.visit(simpleSetPredicate);
-		}
+		/**
+		 * @param continuous For every field, <code>true</code> if its thresholds should be rounded, <code>false</code> otherwise.
+		 */
+		private Thresholds(IntMatrix bestvar, DoubleMatrix xbestsplit, boolean[] continuous, int precision){
+			int[] counts = new int[continuous.length];
 
-		@Override
-		public VisitorAction visit(SimplePredicate simplePredicate){
-			FieldName field = simplePredicate.getField();
-			SimplePredicate.Operator operator = simplePredicate.getOperator();
-			String value = simplePredicate.getValue();
+			for(int i = 0; i < bestvar.size(); i++){
+				int var = bestvar.get(i);
 
-			if((SimplePredicate.Operator.EQUAL).equals(operator) && (("true").equals(value) || ("false").equals(value))){
-				addDataType(field, DataType.BOOLEAN);
-			} else
+				if(var > 0 && continuous[var]){
+					counts[var]++;
+				}
+			}
 
-			if((SimplePredicate.Operator.LESS_OR_EQUAL).equals(operator) && ("0.5").equals(value)){
-				addDataType(field, DataType.BOOLEAN);
-			} else
+			this.values = new double[continuous.length][];
+			this.roundedValues = new double[continuous.length][];
+			this.savedChars = new int[continuous.length][];
 
-			if((SimplePredicate.Operator.GREATER_THAN).equals(operator) && ("0.5").equals(value)){
-				addDataType(field, DataType.BOOLEAN);
-			} else
+			for(int var = 0; var < continuous.length; var++){
 
-			{
-				addDataType(field, DataType.DOUBLE);
+				if(counts[var] > 0){
+					this.values[var] = new double[counts[var]];
+				}
 			}
 
-			return super.visit(simplePredicate);
-		}
+			Arrays.fill(counts, 0);
 
-		private void addDataType(FieldName field, DataType dataType){
-			DataType fieldDataType = this.fieldDataTypes.get(field);
-			if(fieldDataType == null){
-				this.fieldDataTypes.put(field, dataType);
+			for(int i = 0; i < bestvar.size(); i++){
+				int var = bestvar.get(i);
 
-				return;
+				if(var > 0 && continuous[var]){
+					this.values[var][counts[var]++] = xbestsplit.get(i);
+				}
 			}
 
-			switch(fieldDataType){
-				case STRING:
-					return;
-				case DOUBLE:
-					switch(dataType){
-						case STRING:
-							this.fieldDataTypes.put(field, dataType);
-							return;
-						case DOUBLE:
-						case BOOLEAN:
-							return;
-						default:
-							throw new IllegalArgumentException();
+			for(int var = 0; var < continuous.length; var++){
+				double[] values = this.values[var];
+
+				if(values == null){
+					continue;
+				}
+
+				Arrays.sort(values);
+
+				int size = 0;
+
+				for(int i = 0; i < values.length; i++){
+
+					if(size == 0 || values[i] != values[size - 1]){
+						values[size++] = values[i];
 					}
-				case BOOLEAN:
-					switch(dataType){
-						case STRING:
-						case DOUBLE:
-							this.fieldDataTypes.put(field, dataType);
-							return;
-						case BOOLEAN:
-							return;
-						default:
-							throw new IllegalArgumentException();
+				}
+
+				values = Arrays.copyOf(values, size);
+
+				double[] roundedValues = new double[size];
+				int[] savedChars = new int[size];
+
+				for(int i = 0; i < size; i++){
+					double value = values[i];
+					double limit = (i < size - 1 ? values[i + 1] : Double.POSITIVE_INFINITY);
+
+					double roundedValue = round(value, limit, precision);
+
+					int chars = (NumberFormatter.format(value)).length() - (NumberFormatter.format(roundedValue)).length();
+					if(chars <= 0){
+						roundedValue = value;
+
+						chars = 0;
 					}
-				default:
-					return;
+
+					roundedValues[i] = roundedValue;
+					savedChars[i] = chars;
+				}
+
+				this.values[var] = values;
+				this.roundedValues[var] = roundedValues;
+				this.savedChars[var] = savedChars;
 			}
 		}
 
-		public DataType getDataType(FieldName field){
-			return this.fieldDataTypes.get(field);
+		public double getRounded(int var, double value){
+			int index = indexOf(var, value);
+
+			if(index < 0){
+				return value;
+			}
+
+			return this.roundedValues[var][index];
+		}
+
+		public int getSavedChars(int var, double value){
+			int index = indexOf(var, value);
+
+			if(index < 0){
+				return 0;
+			}
+
+			return this.savedChars[var][index];
+		}
+
+		private int indexOf(int var, double value){
+			double[] values = this.values[var];
+
+			if(values == null){
+				return -1;
+			}
+
+			return Arrays.binarySearch(values, value);
+		}
+
+		/**
+		 * @param limit The next larger threshold of the same field.
+		 *
+		 * @return A value that is not less than the specified value, and less than the limit.
+		 */
+		static
+		private double round(double value, double limit, int precision){
+
+			if(precision == RandomForestConverter.PRECISION_FLOAT){
+				float floatValue = (float)value;
+
+				if(floatValue < value){
+					floatValue = Math.nextUp(floatValue);
+				}
+
+				double result = Double.parseDouble(Float.toString(floatValue));
+
+				if(result >= value && result < limit){
+					return result;
+				}
+
+				return value;
+			}
+
+			// Fall back to more digits if the limit is too close
+			for(int digits = precision; digits <= 17; digits++){
+				BigDecimal decimal = (new BigDecimal(value)).round(new MathContext(digits, RoundingMode.CEILING));
+
+				double result = decimal.doubleValue();
+
+				if(result < limit){
+					return result;
+				}
+			}
+
+			return value;
 		}
 	}
+
+	/**
+	 * The maximum number of trees that are encoded ahead of the consumer.
+	 */
+	private static final int WINDOW_SIZE = 64;
+
+	public static final int PRECISION_FULL = 0;
+
+	public static final int PRECISION_FLOAT = -1;
+
+	/**
+	 * The largest bitmask of a 53-level factor.
+	 */
+	private static final double MASK_LIMIT = (0x1p53 - 1);
 }
\ No newline at end of file
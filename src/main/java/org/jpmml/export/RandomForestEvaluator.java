@@ -0,0 +1,671 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.primitives.Doubles;
+import org.dmg.pmml.MiningFunctionType;
+import rexp.Rexp;
+import rexp.Rexp.STRING;
+
+/**
+ * Scores a Random Forest model directly from its <code>forest</code> component.
+ *
+ * The trees are compiled into primitive arrays, one element per node.
+ * Scoring a single row of a single tree walks the arrays directly, and does not allocate. Batch scoring allocates the result array, and per-block buffers for sums or votes.
+ * Splits follow the same rules as the PMML encoding:
+ * a record goes left if the value of a continuous predictor is less than or equal to the threshold,
+ * or if the bit of a categorical predictor's level is set in the split bitmask.
+ *
+ * Continuous predictors are passed as values, and categorical predictors as 0-based level indices.
+ * Missing values are not supported. A <code>NaN</code> value always goes right.
+ */
+public class RandomForestEvaluator {
+
+	private MiningFunctionType miningFunction = null;
+
+	private List<String> names = null;
+
+	private List<String> levels = null;
+
+	private boolean[] categorical = null;
+
+	/**
+	 * The number of levels of a categorical predictor.
+	 */
+	private int[] ncat = null;
+
+	private int ntree = 0;
+
+	private int nrnodes = 0;
+
+	/**
+	 * The absolute index of the left child node, or <code>-1</code>.
+	 */
+	private int[] leftChild = null;
+
+	/**
+	 * The absolute index of the right child node, or <code>-1</code>.
+	 */
+	private int[] rightChild = null;
+
+	/**
+	 * The 0-based index of the split variable, or <code>-1</code> for a leaf node.
+	 */
+	private int[] splitVar = null;
+
+	private double[] threshold = null;
+
+	private long[] mask = null;
+
+	/**
+	 * The predicted value (regression) or the 0-based index of the predicted class (classification).
+	 */
+	private double[] value = null;
+
+	private ExecutorService executorService = null;
+
+
+	public RandomForestEvaluator(LazyREXP randomForest){
+		LazyREXP forest = REXPUtil.field(randomForest, "forest");
+
+		this.miningFunction = RandomForestConverter.getMiningFunction(randomForest);
+
+		Rexp.REXP ncat = (REXPUtil.field(forest, "ncat")).getValue();
+		Rexp.REXP nrnodes = (REXPUtil.field(forest, "nrnodes")).getValue();
+		Rexp.REXP ntree = (REXPUtil.field(forest, "ntree")).getValue();
+
+		this.names = getStrings((REXPUtil.find(forest, "xlevels/@names")).getValue());
+
+		this.categorical = new boolean[ncat.getIntValueCount()];
+		this.ncat = new int[ncat.getIntValueCount()];
+
+		for(int i = 0; i < this.categorical.length; i++){
+			this.categorical[i] = (ncat.getIntValue(i) > 1);
+			this.ncat[i] = ncat.getIntValue(i);
+		}
+
+		this.nrnodes = nrnodes.getIntValue(0);
+		this.ntree = (int)ntree.getRealValue(0);
+
+		int[] bestvar = REXPUtil.getIndices(REXPUtil.field(forest, "bestvar"));
+		double[] xbestsplit = (REXPUtil.field(forest, "xbestsplit")).getRealValues();
+
+		switch(this.miningFunction){
+			case REGRESSION:
+				{
+					this.levels = Collections.emptyList();
+
+					int[] leftDaughter = REXPUtil.getIndices(REXPUtil.field(forest, "leftDaughter"));
+					int[] rightDaughter = REXPUtil.getIndices(REXPUtil.field(forest, "rightDaughter"));
+					double[] nodepred = (REXPUtil.field(forest, "nodepred")).getRealValues();
+
+					compile(leftDaughter, 0, rightDaughter, 0, this.nrnodes, bestvar, xbestsplit);
+
+					for(int i = 0; i < this.value.length; i++){
+						this.value[i] = nodepred[i];
+					}
+				}
+				break;
+			case CLASSIFICATION:
+				{
+					this.levels = getStrings((REXPUtil.find(randomForest, "y/@levels")).getValue());
+
+					// A three-dimensional array (nrnodes x 2 x ntree), where the left and right daughters of the i-th tree are in columns 2 * i and 2 * i + 1, respectively
+					int[] treemap = REXPUtil.getIndices(REXPUtil.field(forest, "treemap"));
+					int[] nodepred = REXPUtil.getIndices(REXPUtil.field(forest, "nodepred"));
+
+					compile(treemap, 0, treemap, this.nrnodes, 2 * this.nrnodes, bestvar, xbestsplit);
+
+					for(int i = 0; i < this.value.length; i++){
+						this.value[i] = (nodepred[i] - 1);
+					}
+				}
+				break;
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * @param stride The distance between the daughters of consecutive trees.
+	 */
+	private void compile(int[] leftDaughter, int leftOffset, int[] rightDaughter, int rightOffset, int stride, int[] bestvar, double[] xbestsplit){
+		int rows = this.nrnodes;
+
+		int size = (rows * this.ntree);
+
+		if(bestvar.length != size || xbestsplit.length != size){
+			throw new IllegalArgumentException();
+		}
+
+		this.leftChild = new int[size];
+		this.rightChild = new int[size];
+		this.splitVar = new int[size];
+		this.threshold = new double[size];
+		this.mask = new long[size];
+		this.value = new double[size];
+
+		for(int tree = 0; tree < this.ntree; tree++){
+			int offset = (tree * rows);
+
+			for(int i = 0; i < rows; i++){
+				int node = (offset + i);
+
+				int var = bestvar[node];
+				if(var == 0){
+					this.leftChild[node] = -1;
+					this.rightChild[node] = -1;
+					this.splitVar[node] = -1;
+
+					continue;
+				} // End if
+
+				if(var < 1 || var > this.categorical.length){
+					throw new IllegalArgumentException();
+				}
+
+				int left = leftDaughter[leftOffset + (tree * stride) + i];
+				int right = rightDaughter[rightOffset + (tree * stride) + i];
+
+				// Child nodes follow their parent node, which guarantees that every path ends in a leaf node
+				if(left <= (i + 1) || left > rows || right <= (i + 1) || right > rows){
+					throw new IllegalArgumentException();
+				}
+
+				this.leftChild[node] = offset + (left - 1);
+				this.rightChild[node] = offset + (right - 1);
+				this.splitVar[node] = (var - 1);
+
+				double split = xbestsplit[node];
+
+				if(this.categorical[var - 1]){
+
+					this.mask[node] = RandomForestConverter.asMask(split);
+				} else
+
+				{
+					this.threshold[node] = split;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The predicted value (regression) or the 0-based index of the predicted class (classification) of the specified tree.
+	 */
+	public double evaluateTree(int tree, double[] row){
+
+		if(tree < 0 || tree >= this.ntree){
+			throw new IllegalArgumentException();
+		} // End if
+
+		if(row.length < this.categorical.length){
+			throw new IllegalArgumentException();
+		}
+
+		int node = (tree * this.nrnodes);
+
+		while(true){
+			int var = this.splitVar[node];
+
+			if(var < 0){
+				return this.value[node];
+			}
+
+			node = (isLeft(node, var, row[var]) ? this.leftChild[node] : this.rightChild[node]);
+		}
+	}
+
+	/**
+	 * @param rows The data records. The i-th element of a data record is the value of the i-th predictor.
+	 *
+	 * @return The predicted values (regression) or the 0-based indices of the predicted classes (classification).
+	 */
+	public double[] predict(double[][] rows){
+		return predict(new RowBatch(rows, this.categorical.length));
+	}
+
+	/**
+	 * @param columns The data columns. The i-th column holds the values of the i-th predictor.
+	 *
+	 * @see #predict(double[][])
+	 */
+	public double[] predictColumns(double[][] columns){
+		return predict(new ColumnBatch(columns, this.categorical.length));
+	}
+
+	/**
+	 * Regression models return the mean of the predicted values of all trees.
+	 * Classification models return the class that receives the most votes. Ties are broken in favour of the class with the lowest index.
+	 */
+	private double[] predict(final Batch batch){
+		final
+		int size = batch.size();
+
+		int classes = this.levels.size();
+
+		final
+		double[] sums = new double[classification() ? 0 : size];
+
+		final
+		int[] votes = new int[classification() ? (size * classes) : 0];
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+		for(int rowBegin = 0; rowBegin < size; rowBegin += RandomForestEvaluator.ROW_BLOCK){
+			final
+			int rowEnd = Math.min(rowBegin + RandomForestEvaluator.ROW_BLOCK, size);
+
+			// Tasks that cover the same rows merge their results under the same lock
+			final
+			Object lock = new Object();
+
+			for(int treeBegin = 0; treeBegin < this.ntree; treeBegin += RandomForestEvaluator.TREE_BLOCK){
+				final
+				int[] range = {rowBegin, rowEnd, treeBegin, Math.min(treeBegin + RandomForestEvaluator.TREE_BLOCK, this.ntree)};
+
+				Callable<Void> task = new Callable<Void>(){
+
+					@Override
+					public Void call(){
+
+						if(classification()){
+							vote(batch, range, votes, lock);
+						} else
+
+						{
+							sum(batch, range, sums, lock);
+						}
+
+						return null;
+					}
+				};
+
+				tasks.add(task);
+			}
+		}
+
+		execute(tasks);
+
+		double[] result = new double[size];
+
+		for(int row = 0; row < size; row++){
+
+			if(classification()){
+				int offset = (row * classes);
+
+				int winner = 0;
+
+				for(int i = 1; i < classes; i++){
+
+					if(votes[offset + i] > votes[offset + winner]){
+						winner = i;
+					}
+				}
+
+				result[row] = winner;
+			} else
+
+			{
+				result[row] = (sums[row] / this.ntree);
+			}
+		}
+
+		return result;
+	}
+
+	private void sum(Batch batch, int[] range, double[] sums, Object lock){
+		int rowBegin = range[0];
+		int rowEnd = range[1];
+
+		double[] blockSums = new double[rowEnd - rowBegin];
+
+		// Tree-major order keeps the arrays of one tree in cache
+		for(int tree = range[2]; tree < range[3]; tree++){
+
+			for(int row = rowBegin; row < rowEnd; row++){
+				blockSums[row - rowBegin] += this.value[findLeaf(tree, batch, row)];
+			}
+		}
+
+		synchronized(lock){
+
+			for(int row = rowBegin; row < rowEnd; row++){
+				sums[row] += blockSums[row - rowBegin];
+			}
+		}
+	}
+
+	private void vote(Batch batch, int[] range, int[] votes, Object lock){
+		int rowBegin = range[0];
+		int rowEnd = range[1];
+
+		int classes = this.levels.size();
+
+		int[] blockVotes = new int[(rowEnd - rowBegin) * classes];
+
+		for(int tree = range[2]; tree < range[3]; tree++){
+
+			for(int row = rowBegin; row < rowEnd; row++){
+				int index = (int)this.value[findLeaf(tree, batch, row)];
+
+				if(index < 0 || index >= classes){
+					throw new IllegalArgumentException();
+				}
+
+				blockVotes[((row - rowBegin) * classes) + index]++;
+			}
+		}
+
+		synchronized(lock){
+			int offset = (rowBegin * classes);
+
+			for(int i = 0; i < blockVotes.length; i++){
+				votes[offset + i] += blockVotes[i];
+			}
+		}
+	}
+
+	private int findLeaf(int tree, Batch batch, int row){
+		int node = (tree * this.nrnodes);
+
+		while(true){
+			int var = this.splitVar[node];
+
+			if(var < 0){
+				return node;
+			}
+
+			node = (isLeft(node, var, batch.get(row, var)) ? this.leftChild[node] : this.rightChild[node]);
+		}
+	}
+
+	private boolean isLeft(int node, int var, double x){
+
+		if(this.categorical[var]){
+			// Send "true" categories to the left
+			return (x >= 0d && x < 64d) && ((this.mask[node] >>> (int)x) & 1L) != 0;
+		}
+
+		return (x <= this.threshold[node]);
+	}
+
+	/**
+	 * Generates data records that exercise both sides of splits.
+	 * Continuous values are drawn from around thresholds, and categorical values are drawn from the levels that split bitmasks refer to.
+	 */
+	double[][] generateRows(int count, Random random){
+		int vars = this.categorical.length;
+
+		double[][] thresholds = new double[vars][];
+		int[] levels = new int[vars];
+
+		for(int var = 0; var < vars; var++){
+			thresholds[var] = new double[0];
+		}
+
+		int[] counts = new int[vars];
+
+		for(int node = 0; node < this.splitVar.length; node++){
+			int var = this.splitVar[node];
+
+			if(var < 0){
+				continue;
+			} // End if
+
+			if(this.categorical[var]){
+				levels[var] = Math.max(levels[var], 64 - Long.numberOfLeadingZeros(this.mask[node]));
+			} else
+
+			{
+				thresholds[var] = Doubles.ensureCapacity(thresholds[var], counts[var] + 1, counts[var]);
+				thresholds[var][counts[var]++] = this.threshold[node];
+			}
+		}
+
+		double[][] result = new double[count][vars];
+
+		for(int i = 0; i < count; i++){
+
+			for(int var = 0; var < vars; var++){
+				double value;
+
+				if(this.categorical[var]){
+					// Include one level that is not mentioned in any bitmask, if there is such a level
+					value = random.nextInt(Math.min(levels[var] + 1, this.ncat[var]));
+				} else
+
+				if(counts[var] > 0){
+					value = thresholds[var][random.nextInt(counts[var])];
+
+					switch(random.nextInt(3)){
+						case 0:
+							break;
+						case 1:
+							value = Math.nextUp(value);
+							break;
+						default:
+							value += (random.nextGaussian() * Math.max(Math.abs(value), 1d));
+							break;
+					}
+				} else
+
+				{
+					value = random.nextGaussian();
+				}
+
+				result[i][var] = value;
+			}
+		}
+
+		return result;
+	}
+
+	private void execute(List<Callable<Void>> tasks){
+		ExecutorService executorService = getExecutorService();
+
+		if(executorService == null){
+
+			for(Callable<Void> task : tasks){
+
+				try {
+					task.call();
+				} catch(Exception e){
+					throw Throwables.propagate(e);
+				}
+			}
+
+			return;
+		}
+
+		List<Future<Void>> futures;
+
+		try {
+			futures = executorService.invokeAll(tasks);
+
+			for(Future<Void> future : futures){
+				future.get();
+			}
+		} catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+
+			throw Throwables.propagate(ie);
+		} catch(ExecutionException ee){
+			throw Throwables.propagate(ee.getCause());
+		}
+	}
+
+	private boolean classification(){
+		return (MiningFunctionType.CLASSIFICATION).equals(this.miningFunction);
+	}
+
+	public MiningFunctionType getMiningFunction(){
+		return this.miningFunction;
+	}
+
+	/**
+	 * @return The names of predictors.
+	 */
+	public List<String> getNames(){
+		return Collections.unmodifiableList(this.names);
+	}
+
+	/**
+	 * @return The levels of the target variable (classification), or an empty list (regression).
+	 */
+	public List<String> getLevels(){
+		return Collections.unmodifiableList(this.levels);
+	}
+
+	public int getTreeCount(){
+		return this.ntree;
+	}
+
+	int getNodeCount(){
+		return this.nrnodes;
+	}
+
+	int[] getLeftChild(){
+		return this.leftChild;
+	}
+
+	int[] getRightChild(){
+		return this.rightChild;
+	}
+
+	int[] getSplitVar(){
+		return this.splitVar;
+	}
+
+	double[] getThreshold(){
+		return this.threshold;
+	}
+
+	long[] getMask(){
+		return this.mask;
+	}
+
+	double[] getValue(){
+		return this.value;
+	}
+
+	boolean isCategorical(int var){
+		return this.categorical[var];
+	}
+
+	public ExecutorService getExecutorService(){
+		return this.executorService;
+	}
+
+	/**
+	 * @param executorService The executor for scoring blocks of rows and trees in parallel, or <code>null</code>.
+	 */
+	public void setExecutorService(ExecutorService executorService){
+		this.executorService = executorService;
+	}
+
+	static
+	private List<String> getStrings(Rexp.REXP rexp){
+		List<String> result = new ArrayList<String>();
+
+		for(int i = 0; i < rexp.getStringValueCount(); i++){
+			STRING value = rexp.getStringValue(i);
+
+			result.add(value.getStrval());
+		}
+
+		return result;
+	}
+
+	static
+	abstract
+	private class Batch {
+
+		abstract
+		public int size();
+
+		abstract
+		public double get(int row, int var);
+	}
+
+	static
+	private class RowBatch extends Batch {
+
+		private double[][] rows = null;
+
+
+		private RowBatch(double[][] rows, int vars){
+
+			for(double[] row : rows){
+
+				if(row.length < vars){
+					throw new IllegalArgumentException();
+				}
+			}
+
+			this.rows = rows;
+		}
+
+		@Override
+		public int size(){
+			return this.rows.length;
+		}
+
+		@Override
+		public double get(int row, int var){
+			return this.rows[row][var];
+		}
+	}
+
+	static
+	private class ColumnBatch extends Batch {
+
+		private double[][] columns = null;
+
+		private int size = 0;
+
+
+		private ColumnBatch(double[][] columns, int vars){
+
+			if(columns.length < vars){
+				throw new IllegalArgumentException();
+			}
+
+			this.size = (columns.length > 0 ? columns[0].length : 0);
+
+			for(double[] column : columns){
+
+				if(column.length != this.size){
+					throw new IllegalArgumentException();
+				}
+			}
+
+			this.columns = columns;
+		}
+
+		@Override
+		public int size(){
+			return this.size;
+		}
+
+		@Override
+		public double get(int row, int var){
+			return this.columns[var][row];
+		}
+	}
+
+	private static final int ROW_BLOCK = 1024;
+
+	private static final int TREE_BLOCK = 64;
+}
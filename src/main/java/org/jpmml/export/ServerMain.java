@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.transform.stream.StreamResult;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.common.base.Function;
+import com.google.common.io.ByteStreams;
+import org.dmg.pmml.PMML;
+import org.jpmml.model.JAXBUtil;
+
+/**
+ * Converts ProtoBuf files on request, in a long-running JVM.
+ *
+ * Requests are read from a TCP socket on the loopback interface, or from the standard input if no port is specified. Every request is one line:
+ * <pre>
+ * convert [options] &lt;input file&gt; &lt;output file&gt;
+ * convert-bytes &lt;length&gt; [options] &lt;output file&gt;
+ * </pre>
+ * The latter is immediately followed by <code>length</code> bytes of ProtoBuf input.
+ * The options are <code>--mmap</code>, <code>--stream</code>, <code>--spill</code>, <code>--gzip</code>, <code>--deduplicate</code>, <code>--prune</code>, <code>--tree-range</code>, <code>--compact</code>, <code>--threshold-precision</code> and <code>--timeout</code>, as in {@link Main}.
+ *
+ * Jobs are numbered from 1 per connection, and are answered in the order of completion with one line, either "ok &lt;job&gt; &lt;millis&gt;" or "error &lt;job&gt; &lt;message&gt;".
+ * When all threads are busy and the queue is full, requests are not read until a job completes.
+ */
+public class ServerMain {
+
+	@Parameter (
+		names = "--port",
+		description = "Local TCP port. If not specified, requests are read from the standard input and answered on the standard output"
+	)
+	private Integer port = null;
+
+	@Parameter (
+		names = "--threads",
+		description = "The number of jobs that are converted in parallel"
+	)
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter (
+		names = "--queue-size",
+		description = "The number of accepted jobs that may wait for a thread"
+	)
+	private int queueSize = Runtime.getRuntime().availableProcessors();
+
+	@Parameter (
+		names = "--warm-up",
+		description = "ProtoBuf file that is converted (and discarded) before accepting requests"
+	)
+	private File warmUp = null;
+
+	private ExecutorService executorService = null;
+
+	private Semaphore permits = null;
+
+
+	static
+	public void main(String... args) throws Exception {
+		ServerMain main = new ServerMain();
+
+		JCommander commander = new JCommander(main);
+		commander.setProgramName(ServerMain.class.getName());
+
+		try {
+			commander.parse(args);
+		} catch(ParameterException pe){
+			commander.usage();
+
+			System.exit(-1);
+		}
+
+		main.run();
+	}
+
+	/**
+	 * Serves requests until the standard input is exhausted. In the socket mode, never returns normally.
+	 */
+	public void run() throws Exception {
+		// Load and initialize JAXB classes before the first request
+		JAXBUtil.getContext();
+
+		if(this.warmUp != null){
+			long start = System.currentTimeMillis();
+
+			convert(new FileSource(this.warmUp), ByteStreams.nullOutputStream(), new Options());
+
+			long end = System.currentTimeMillis();
+
+			System.err.println("Warmed up in " + (end - start) + " ms.");
+		}
+
+		int threads = Math.max(1, this.threads);
+
+		this.executorService = Executors.newFixedThreadPool(threads);
+		this.permits = new Semaphore(threads + Math.max(0, this.queueSize));
+
+		try {
+
+			if(this.port == null){
+				Session session = new Session(System.in, System.out);
+
+				session.serve();
+			} else
+
+			{
+				ServerSocket serverSocket = new ServerSocket(this.port, 50, InetAddress.getByName(null));
+
+				try {
+					System.out.println("Listening on port " + serverSocket.getLocalPort() + ".");
+
+					while(true){
+						final
+						Socket socket = serverSocket.accept();
+
+						Runnable runnable = new Runnable(){
+
+							@Override
+							public void run(){
+
+								try {
+									Session session = new Session(socket.getInputStream(), socket.getOutputStream());
+
+									session.serve();
+								} catch(Exception e){
+									System.err.println("Connection failed: " + e);
+								} finally {
+
+									try {
+										socket.close();
+									} catch(IOException ioe){
+										// Ignored
+									}
+								}
+							}
+						};
+
+						Thread thread = new Thread(runnable, "connection-" + socket.getPort());
+						thread.setDaemon(true);
+						thread.start();
+					}
+				} finally {
+					serverSocket.close();
+				}
+			}
+		} finally {
+			this.executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Closes both the source and the output stream, also when the conversion fails.
+	 */
+	static
+	private void convert(ProtoBufSource source, OutputStream os, final Options options) throws Exception {
+
+		try {
+			LazyREXP rexp = LazyREXP.parse(source);
+
+			Function<Converter, Converter> configurer = new Function<Converter, Converter>(){
+
+				@Override
+				public Converter apply(Converter converter){
+					return Main.configure(converter, options.deduplicate, options.prune, options.treeRange, options.spill, options.compact, options.thresholdPrecision);
+				}
+			};
+
+			// Jobs are converted in parallel, so the trees of a single job are not
+			Converter converter = Main.createConverter(rexp, null, configurer);
+
+			if(options.timeout != null){
+				converter.setDeadline(System.currentTimeMillis() + (options.timeout * 1000L));
+			}
+
+			if(options.stream || options.spill){
+				converter.convert(rexp, os);
+			} else
+
+			{
+				PMML pmml = converter.convert(rexp);
+
+				JAXBUtil.marshalPMML(pmml, new StreamResult(os));
+			}
+		} finally {
+
+			try {
+				os.close();
+			} finally {
+				source.close();
+			}
+		}
+	}
+
+	public Integer getPort(){
+		return this.port;
+	}
+
+	public void setPort(Integer port){
+		this.port = port;
+	}
+
+	public int getThreads(){
+		return this.threads;
+	}
+
+	public void setThreads(int threads){
+		this.threads = threads;
+	}
+
+	public int getQueueSize(){
+		return this.queueSize;
+	}
+
+	public void setQueueSize(int queueSize){
+		this.queueSize = queueSize;
+	}
+
+	public File getWarmUp(){
+		return this.warmUp;
+	}
+
+	public void setWarmUp(File warmUp){
+		this.warmUp = warmUp;
+	}
+
+	/**
+	 * @return A line without the terminator, or <code>null</code> if the stream is exhausted.
+	 */
+	static
+	private String readLine(InputStream is) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+		while(true){
+			int b = is.read();
+
+			if(b < 0){
+
+				if(buffer.size() == 0){
+					return null;
+				}
+
+				break;
+			} // End if
+
+			if(b == '\n'){
+				break;
+			}
+
+			buffer.write(b);
+		}
+
+		String result = buffer.toString("UTF-8");
+
+		if(result.endsWith("\r")){
+			result = result.substring(0, result.length() - 1);
+		}
+
+		return result;
+	}
+
+	/**
+	 * The requests and responses of one client.
+	 */
+	private class Session {
+
+		private DataInputStream is = null;
+
+		private Writer writer = null;
+
+		private int jobs = 0;
+
+		private int pending = 0;
+
+
+		private Session(InputStream is, OutputStream os) throws IOException {
+			this.is = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+			this.writer = new OutputStreamWriter(os, "UTF-8");
+		}
+
+		/**
+		 * Reads requests until the input is exhausted, and then waits for all pending jobs.
+		 */
+		public void serve() throws Exception {
+
+			try {
+				while(true){
+					String line = readLine(this.is);
+					if(line == null){
+						break;
+					}
+
+					line = line.trim();
+
+					if(line.length() == 0){
+						continue;
+					}
+
+					int id = ++this.jobs;
+
+					Job job;
+
+					try {
+						job = parseJob(id, line);
+					} catch(ParameterException pe){
+						respond("error " + id + " " + toMessage(pe));
+
+						continue;
+					} catch(IllegalArgumentException iae){
+						respond("error " + id + " " + toMessage(iae));
+
+						continue;
+					}
+
+					// Blocks while the queue is full
+					ServerMain.this.permits.acquire();
+
+					begin();
+
+					try {
+						ServerMain.this.executorService.execute(job);
+					} catch(RejectedExecutionException ree){
+						end();
+
+						ServerMain.this.permits.release();
+
+						throw ree;
+					}
+				}
+			} finally {
+				await();
+			}
+		}
+
+		private Job parseJob(int id, String line) throws IOException {
+			List<String> tokens = new ArrayList<String>(Arrays.asList(line.split("\\s+")));
+
+			String command = tokens.remove(0);
+
+			byte[] bytes = null;
+
+			if(("convert").equals(command)){
+				// Ignored
+			} else
+
+			if(("convert-bytes").equals(command)){
+				int length;
+
+				try {
+					length = Integer.parseInt(tokens.remove(0));
+				} catch(RuntimeException re){
+					// The size of the payload is unknown, so the next request cannot be located
+					throw new IOException("Invalid request: " + line);
+				}
+
+				if(length < 0){
+					throw new IOException("Invalid request: " + line);
+				}
+
+				bytes = new byte[length];
+
+				this.is.readFully(bytes);
+			} else
+
+			{
+				throw new IllegalArgumentException("Unknown command " + command);
+			}
+
+			Options options = new Options();
+
+			new JCommander(options, tokens.toArray(new String[tokens.size()]));
+
+			List<String> files = options.files;
+			if(files.size() != (bytes != null ? 1 : 2)){
+				throw new IllegalArgumentException("Invalid request: " + line);
+			}
+
+			Job job = new Job(id, options);
+
+			if(bytes != null){
+				job.bytes = bytes;
+				job.output = new File(files.get(0));
+			} else
+
+			{
+				job.input = new File(files.get(0));
+				job.output = new File(files.get(1));
+			}
+
+			return job;
+		}
+
+		synchronized
+		private void respond(String line) throws IOException {
+			this.writer.write(line);
+			this.writer.write('\n');
+			this.writer.flush();
+		}
+
+		synchronized
+		private void begin(){
+			this.pending++;
+		}
+
+		synchronized
+		private void end(){
+			this.pending--;
+
+			if(this.pending == 0){
+				notifyAll();
+			}
+		}
+
+		synchronized
+		private void await() throws InterruptedException {
+
+			while(this.pending > 0){
+				wait();
+			}
+		}
+
+		private class Job implements Runnable {
+
+			private int id = 0;
+
+			private Options options = null;
+
+			private File input = null;
+
+			private byte[] bytes = null;
+
+			private File output = null;
+
+
+			private Job(int id, Options options){
+				this.id = id;
+				this.options = options;
+			}
+
+			@Override
+			public void run(){
+				long start = System.currentTimeMillis();
+
+				String response = ("error " + this.id + " Conversion failed");
+
+				try {
+					convert();
+
+					long end = System.currentTimeMillis();
+
+					response = ("ok " + this.id + " " + (end - start));
+				} catch(Throwable t){
+					response = ("error " + this.id + " " + toMessage(t));
+				} finally {
+
+					try {
+						respond(response);
+					} catch(IOException ioe){
+						// The client has gone away
+					} finally {
+						ServerMain.this.permits.release();
+
+						end();
+					}
+				}
+			}
+
+			private void convert() throws Exception {
+				ProtoBufSource source;
+
+				if(this.bytes != null){
+					source = new ByteArraySource(this.bytes);
+
+					// Release the payload as soon as the job completes
+					this.bytes = null;
+				} else
+
+				{
+					source = (this.options.mmap ? new MappedFileSource(this.input) : new FileSource(this.input));
+				}
+
+				OutputStream os;
+
+				try {
+
+					if(this.options.gzip || (this.output.getName()).endsWith(".gz")){
+						os = new ParallelGZIPOutputStream(new FileOutputStream(this.output), null);
+					} else
+
+					{
+						os = new BufferedOutputStream(new FileOutputStream(this.output), 64 * 1024);
+					}
+				} catch(IOException ioe){
+					source.close();
+
+					throw ioe;
+				}
+
+				try {
+					ServerMain.convert(source, os, this.options);
+				} catch(Throwable t){
+					// Do not leave an empty or incomplete output file behind
+					this.output.delete();
+
+					throw t;
+				}
+			}
+		}
+	}
+
+	static
+	private String toMessage(Throwable throwable){
+		String result = String.valueOf(throwable);
+
+		return result.replace('\r', ' ').replace('\n', ' ');
+	}
+
+	static
+	private class Options {
+
+		@Parameter (
+			description = "Input and output files"
+		)
+		private List<String> files = new ArrayList<String>();
+
+		@Parameter (
+			names = "--mmap"
+		)
+		private boolean mmap = false;
+
+		@Parameter (
+			names = "--stream"
+		)
+		private boolean stream = false;
+
+		@Parameter (
+			names = "--spill"
+		)
+		private boolean spill = false;
+
+		@Parameter (
+			names = "--gzip"
+		)
+		private boolean gzip = false;
+
+		@Parameter (
+			names = "--deduplicate"
+		)
+		private boolean deduplicate = false;
+
+		@Parameter (
+			names = "--prune"
+		)
+		private boolean prune = false;
+
+		@Parameter (
+			names = "--tree-range"
+		)
+		private String treeRange = null;
+
+		@Parameter (
+			names = "--compact"
+		)
+		private boolean compact = false;
+
+		@Parameter (
+			names = "--threshold-precision"
+		)
+		private String thresholdPrecision = null;
+
+		@Parameter (
+			names = "--timeout"
+		)
+		private Integer timeout = null;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.transform.stream.StreamSource;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import org.dmg.pmml.PMML;
+import org.jpmml.model.JAXBUtil;
+
+/**
+ * Cross-checks the PMML encoding of a Random Forest model against {@link RandomForestEvaluator}.
+ *
+ * Every tree is scored twice, once from the <code>forest</code> component and once from its Segment element, on generated data records that exercise both sides of splits.
+ * The PMML document is either converted in memory with default options, or read from a file that was converted earlier.
+ * Files that were converted with rounded thresholds (see the <code>--compact</code> and <code>--threshold-precision</code> options of {@link Main}) may disagree near thresholds.
+ */
+public class VerifyMain {
+
+	@Parameter (
+		names = "--pb-input",
+		description = "ProtoBuf input file",
+		required = true
+	)
+	private File input = null;
+
+	@Parameter (
+		names = "--pmml-input",
+		description = "PMML input file. If omitted, the ProtoBuf input file is converted in memory"
+	)
+	private File pmmlInput = null;
+
+	@Parameter (
+		names = "--rows",
+		description = "The number of generated data records"
+	)
+	private int rows = 10000;
+
+	@Parameter (
+		names = "--seed",
+		description = "The seed for generating data records"
+	)
+	private long seed = 42L;
+
+
+	static
+	public void main(String... args) throws Exception {
+		VerifyMain main = new VerifyMain();
+
+		JCommander commander = new JCommander(main);
+		commander.setProgramName(VerifyMain.class.getName());
+
+		try {
+			commander.parse(args);
+		} catch(ParameterException pe){
+			commander.usage();
+
+			System.exit(-1);
+		}
+
+		long disagreements = main.run();
+		if(disagreements > 0){
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return The number of predictions that disagree.
+	 */
+	public long run() throws Exception {
+		ProtoBufSource source = new FileSource(this.input);
+
+		try {
+			return run(LazyREXP.parse(source));
+		} finally {
+			source.close();
+		}
+	}
+
+	private long run(LazyREXP randomForest) throws Exception {
+
+		if(!REXPUtil.inherits(randomForest, "randomForest")){
+			throw new IllegalArgumentException("Not a randomForest object");
+		}
+
+		RandomForestEvaluator evaluator = new RandomForestEvaluator(randomForest);
+
+		PMML pmml;
+
+		if(this.pmmlInput != null){
+			InputStream is = open(this.pmmlInput);
+
+			try {
+				pmml = JAXBUtil.unmarshalPMML(new StreamSource(is));
+			} finally {
+				is.close();
+			}
+		} else
+
+		{
+			RandomForestConverter converter = new RandomForestConverter();
+
+			pmml = converter.convert(randomForest);
+		}
+
+		PMMLForestEvaluator pmmlEvaluator = new PMMLForestEvaluator(pmml, evaluator.getNames());
+
+		if(pmmlEvaluator.getTreeCount() != evaluator.getTreeCount()){
+			throw new IllegalArgumentException("Expected " + evaluator.getTreeCount() + " Segment elements, got " + pmmlEvaluator.getTreeCount() + ". Trees that were left out by the \"--deduplicate\" or \"--tree-range\" options cannot be checked");
+		}
+
+		double[][] rows = evaluator.generateRows(this.rows, new Random(this.seed));
+
+		long disagreements = 0;
+
+		for(int tree = 0; tree < evaluator.getTreeCount(); tree++){
+
+			for(int i = 0; i < rows.length; i++){
+				double expected = evaluator.evaluateTree(tree, rows[i]);
+				double actual = pmmlEvaluator.evaluateTree(tree, rows[i]);
+
+				if(Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)){
+
+					// Print the first few disagreements only
+					if(disagreements < 10){
+						System.out.println("Tree " + (tree + 1) + " predicts " + actual + " (expected " + expected + ") for " + Arrays.toString(rows[i]));
+					}
+
+					disagreements++;
+				}
+			}
+		}
+
+		System.out.println("Checked " + evaluator.getTreeCount() + " trees on " + rows.length + " data records: " + disagreements + " disagreements.");
+
+		return disagreements;
+	}
+
+	public File getInput(){
+		return this.input;
+	}
+
+	public void setInput(File input){
+		this.input = input;
+	}
+
+	public File getPmmlInput(){
+		return this.pmmlInput;
+	}
+
+	public void setPmmlInput(File pmmlInput){
+		this.pmmlInput = pmmlInput;
+	}
+
+	public int getRows(){
+		return this.rows;
+	}
+
+	public void setRows(int rows){
+		this.rows = rows;
+	}
+
+	public long getSeed(){
+		return this.seed;
+	}
+
+	public void setSeed(long seed){
+		this.seed = seed;
+	}
+
+	static
+	private InputStream open(File file) throws Exception {
+		InputStream is = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+
+		if((file.getName()).endsWith(".gz")){
+			is = new GZIPInputStream(is, 64 * 1024);
+		}
+
+		return is;
+	}
+}
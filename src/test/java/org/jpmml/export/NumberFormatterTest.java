@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014 Villu Ruusmann
+ */
+package org.jpmml.export;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NumberFormatterTest {
+
+	@Test
+	public void formatIntegral(){
+		assertEquals("0", NumberFormatter.format(0d));
+		assertEquals("1", NumberFormatter.format(1d));
+		assertEquals("-1", NumberFormatter.format(-1d));
+		assertEquals("1000000", NumberFormatter.format(1e6d));
+		assertEquals("10000000", NumberFormatter.format(1e7d));
+		assertEquals("9007199254740994", NumberFormatter.format(0x1p53 + 2d));
+	}
+
+	@Test
+	public void formatNegativeZero(){
+		// Negative zero is an integral value
+		assertEquals("0", NumberFormatter.format(-0d));
+	}
+
+	@Test
+	public void formatSpecial(){
+		assertEquals("NaN", NumberFormatter.format(Double.NaN));
+		assertEquals("Infinity", NumberFormatter.format(Double.POSITIVE_INFINITY));
+		assertEquals("-Infinity", NumberFormatter.format(Double.NEGATIVE_INFINITY));
+	}
+
+	@Test
+	public void formatSubnormal(){
+		// Double#toString(double) formats this value as "4.9E-324", but one digit is enough
+		assertEquals("5.0E-324", NumberFormatter.format(Double.MIN_VALUE));
+		assertEquals("-5.0E-324", NumberFormatter.format(-Double.MIN_VALUE));
+		assertEquals("1.0E-323", NumberFormatter.format(2 * Double.MIN_VALUE));
+		assertEquals("2.225073858507201E-308", NumberFormatter.format(nextDown(Double.MIN_NORMAL)));
+		assertEquals("2.2250738585072014E-308", NumberFormatter.format(Double.MIN_NORMAL));
+
+		checkRoundTrip(Double.MIN_VALUE);
+		checkRoundTrip(nextDown(Double.MIN_NORMAL));
+		checkRoundTrip(Double.MIN_NORMAL);
+	}
+
+	@Test
+	public void formatPowersOfTen(){
+		assertEquals("1.0E-323", NumberFormatter.format(1e-323d));
+		assertEquals("1.0E-10", NumberFormatter.format(1e-10d));
+		assertEquals("1.0E-4", NumberFormatter.format(1e-4d));
+		assertEquals("0.001", NumberFormatter.format(1e-3d));
+		assertEquals("0.01", NumberFormatter.format(1e-2d));
+		assertEquals("0.1", NumberFormatter.format(1e-1d));
+		assertEquals("1.0E19", NumberFormatter.format(1e19d));
+		assertEquals("1.0E22", NumberFormatter.format(1e22d));
+		assertEquals("1.0E308", NumberFormatter.format(1e308d));
+
+		for(int exponent = -323; exponent <= 308; exponent++){
+			checkRoundTrip(Double.parseDouble("1e" + exponent));
+		}
+	}
+
+	@Test
+	public void formatExponentBoundaries(){
+		// The exponent of the leading digit is -3
+		assertEquals("0.001", NumberFormatter.format(0.001d));
+		assertEquals("0.0015", NumberFormatter.format(0.0015d));
+		assertEquals("0.009999999999999998", NumberFormatter.format(nextDown(0.01d)));
+
+		// The exponent of the leading digit is -4
+		assertEquals("9.99E-4", NumberFormatter.format(0.000999d));
+		assertEquals("9.999999999999998E-4", NumberFormatter.format(nextDown(0.001d)));
+
+		// The exponent of the leading digit is 6
+		assertEquals("1000000.5", NumberFormatter.format(1000000.5d));
+		assertEquals("9999999.5", NumberFormatter.format(9999999.5d));
+		assertEquals("9999999.999999998", NumberFormatter.format(nextDown(1e7d)));
+
+		// The exponent of the leading digit is 7
+		assertEquals("1.00000005E7", NumberFormatter.format(10000000.5d));
+		assertEquals("1.2345678125E7", NumberFormatter.format(12345678.125d));
+
+		// Integral values beyond the range of long values
+		assertEquals("9.223372036854776E18", NumberFormatter.format(0x1p63));
+		assertEquals("-9.223372036854776E18", NumberFormatter.format(-0x1p63));
+		assertEquals("9223372036854774784", NumberFormatter.format(nextDown(0x1p63)));
+	}
+
+	@Test
+	public void formatShortest(){
+		assertEquals("0.1", NumberFormatter.format(0.1d));
+		assertEquals("0.30000000000000004", NumberFormatter.format(0.1d + 0.2d));
+		assertEquals("0.002", NumberFormatter.format(0.002d));
+		assertEquals("1.7976931348623157E308", NumberFormatter.format(Double.MAX_VALUE));
+
+		// Double#toString(double) formats this value as "9.999999999999999E22"
+		assertEquals("1.0E23", NumberFormatter.format(1e23d));
+	}
+
+	@Test
+	public void formatRandom(){
+		Random random = new Random(42L);
+
+		for(int i = 0; i < 1000000; i++){
+			double value = Double.longBitsToDouble(random.nextLong());
+
+			if(Double.isNaN(value) || Double.isInfinite(value)){
+				continue;
+			}
+
+			checkRoundTrip(value);
+		}
+
+		for(int i = 0; i < 1000000; i++){
+			double value = (random.nextGaussian() * Math.pow(10d, random.nextInt(21) - 10));
+
+			checkRoundTrip(value);
+		}
+	}
+
+	@Test
+	public void append(){
+		StringBuilder sb = new StringBuilder("x=");
+
+		NumberFormatter.append(sb, 0.5d);
+
+		assertEquals("x=0.5", sb.toString());
+	}
+
+	static
+	private double nextDown(double value){
+		return Math.nextAfter(value, Double.NEGATIVE_INFINITY);
+	}
+
+	static
+	private void checkRoundTrip(double value){
+		String string = NumberFormatter.format(value);
+
+		assertEquals(string, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(string)));
+
+		// Never longer than the JDK formatting, which is not always the shortest
+		if((long)value != value){
+			assertTrue(string + " is longer than " + Double.toString(value), string.length() <= (Double.toString(value)).length());
+		}
+	}
+}